@@ -1,4 +1,41 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.Month;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 enum VehicleType {
     ECONOMY,
@@ -45,10 +82,162 @@ class CreditCardPayment implements PaymentStrategy {
 //         // Logic for cash payment processing would go here
 //     }
 // }
+// talks to the payment provider without blocking the caller: the future completes with true when
+// the charge went through and false (or exceptionally) when it did not
+interface PaymentGateway {
+    CompletableFuture<Boolean> charge(String idempotencyKey, double amount, PaymentStrategy paymentStrategy);
+}
+
+// charges through the payment strategy on the caller's thread and hands back a finished future;
+// what the system uses unless a remote gateway is wired in
+class DirectPaymentGateway implements PaymentGateway {
+    @Override
+    public CompletableFuture<Boolean> charge(String idempotencyKey, double amount, PaymentStrategy paymentStrategy) {
+        try {
+            paymentStrategy.processPayment(amount);
+            return CompletableFuture.completedFuture(true);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
+
+// local stand-in for a remote gateway, for benchmarks: every charge succeeds after a fixed round
+// trip. the delay is a scheduled completion, so waiting charges hold no threads.
+class StubPaymentGateway implements PaymentGateway {
+    final private ScheduledExecutorService scheduler;
+    final private long latencyMillis;
+    final private LongAdder charges = new LongAdder();
+
+    public StubPaymentGateway(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stub-payment-gateway");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    @Override
+    public CompletableFuture<Boolean> charge(String idempotencyKey, double amount, PaymentStrategy paymentStrategy) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        scheduler.schedule(() -> {
+            try {
+                paymentStrategy.processPayment(amount);
+                charges.increment();
+                result.complete(true);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }, latencyMillis, TimeUnit.MILLISECONDS);
+        return result;
+    }
+    public long getChargeCount() {
+        return charges.sum();
+    }
+}
+
+// futures by idempotency key, capped at capacity keys. the oldest key goes first whether or not its
+// future has finished, so a call that never answers cannot grow the cache without bound; a key
+// that failed is dropped at once so it can be retried.
+class IdempotencyCache<V> {
+    final private int capacity;
+    // insertion ordered; guarded by its own monitor
+    final private Map<String, CompletableFuture<V>> futures;
+
+    public IdempotencyCache(int capacity) {
+        this.capacity = capacity;
+        this.futures = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<V>> eldest) {
+                return size() > IdempotencyCache.this.capacity;
+            }
+        };
+    }
+    // the future already held under key, or null once created has been stored in its place
+    public CompletableFuture<V> putIfAbsent(String key, CompletableFuture<V> created) {
+        synchronized (futures) {
+            CompletableFuture<V> existing = futures.putIfAbsent(key, created);
+            if (existing != null) return existing;
+        }
+        created.whenComplete((value, error) -> {
+            if (error != null) forget(key, created);
+        });
+        return null;
+    }
+    public void forget(String key, CompletableFuture<V> future) {
+        synchronized (futures) {
+            futures.remove(key, future);
+        }
+    }
+    public int size() {
+        synchronized (futures) {
+            return futures.size();
+        }
+    }
+}
+
+// hands payments to the gateway with at most maxInFlight outstanding; the rest wait in a queue and
+// start as earlier ones finish, so throughput is set by gateway concurrency rather than by one
+// round trip after another. a payment asked for again under the same idempotency key gets the
+// first attempt's future instead of a second charge; declined attempts are forgotten so the key
+// can be retried.
 class PaymentProcessor {
+    private static final int REMEMBERED_PAYMENTS = 10_000;
+    final private PaymentGateway gateway;
+    final private Semaphore inFlight;
+    final private Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+    final private IdempotencyCache<Boolean> payments;
+
+    public PaymentProcessor(PaymentGateway gateway, int maxInFlight) {
+        this(gateway, maxInFlight, REMEMBERED_PAYMENTS);
+    }
+    public PaymentProcessor(PaymentGateway gateway, int maxInFlight, int rememberedPayments) {
+        this.gateway = gateway;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.payments = new IdempotencyCache<>(rememberedPayments);
+    }
+    // a one-off charge with no key to resubmit under, so nothing is remembered for it
     public boolean processPayment(double amount, PaymentStrategy paymentStrategy) {
-        paymentStrategy.processPayment(amount);
-        return true; // Assume payment is successful for simplicity
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        submit(UUID.randomUUID().toString(), amount, paymentStrategy, result);
+        return result.join();
+    }
+    public CompletableFuture<Boolean> processPaymentAsync(String idempotencyKey, double amount, PaymentStrategy paymentStrategy) {
+        CompletableFuture<Boolean> created = new CompletableFuture<>();
+        CompletableFuture<Boolean> existing = payments.putIfAbsent(idempotencyKey, created);
+        if (existing != null) return existing;
+        created.thenAccept(paid -> {
+            if (!paid) payments.forget(idempotencyKey, created);
+        });
+        submit(idempotencyKey, amount, paymentStrategy, created);
+        return created;
+    }
+    private void submit(String idempotencyKey, double amount, PaymentStrategy paymentStrategy, CompletableFuture<Boolean> result) {
+        waiting.add(() -> gateway.charge(idempotencyKey, amount, paymentStrategy).whenComplete((paid, error) -> {
+            inFlight.release();
+            drain();
+            if (error != null) result.completeExceptionally(error);
+            else result.complete(paid);
+        }));
+        drain();
+    }
+    // starts queued payments while permits last; re-checks after releasing so a payment queued
+    // between the poll and the release is not stranded
+    private void drain() {
+        while (!waiting.isEmpty() && inFlight.tryAcquire()) {
+            Runnable next = waiting.poll();
+            if (next == null) {
+                inFlight.release();
+                continue;
+            }
+            next.run();
+        }
+    }
+    public int getAvailableSlots() {
+        return inFlight.availablePermits();
+    }
+    public int getRememberedPayments() {
+        return payments.size();
     }
 }
 
@@ -58,9 +247,12 @@ abstract class Vehicle {
     final private String licensePlate;
     final private String registrationNumber;
     final public double rentalPriceMultiplier;  
-    private VehicleStatus vehicleStatus;
+    private volatile VehicleStatus vehicleStatus; // changed by ReservationStateMachine under the vehicle's monitor
+    final private BookingCalendar bookingCalendar = new BookingCalendar();
+    final private VehicleType vehicleClass;
     public Vehicle(String vehicleType, String model, String licensePlate, String registrationNumber, double rentalPriceMultiplier, VehicleStatus vehicleStatus) {
         this.vehicleType = vehicleType;
+        this.vehicleClass = toVehicleClass(vehicleType);
         this.model = model;
         this.licensePlate = licensePlate;
         this.registrationNumber = registrationNumber;
@@ -70,12 +262,30 @@ abstract class Vehicle {
     private String getVehicleType() {
         return vehicleType;
     }
+    private static VehicleType toVehicleClass(String vehicleType) {
+        switch(vehicleType){
+            case "Economy": return VehicleType.ECONOMY;
+            case "Luxury": return VehicleType.LUXURY;
+            case "SUV": return VehicleType.SUV;
+            case "SuperCar": return VehicleType.SuperCar;
+            default: throw new IllegalArgumentException("Invalid vehicle type: " + vehicleType);
+        }
+    }
+    public VehicleType getVehicleClass() {
+        return vehicleClass;
+    }
     public String getRegistrationNumber() {
         return registrationNumber;
     } 
     public VehicleStatus getRentalStatus() {
         return vehicleStatus;
     }
+    void setRentalStatus(VehicleStatus vehicleStatus) {
+        this.vehicleStatus = vehicleStatus;
+    }
+    public BookingCalendar getBookingCalendar() {
+        return bookingCalendar;
+    }
     void displayVehicleInfo() {
         System.out.println("Vehicle Type: " + vehicleType);
         System.out.println("Model: " + model);
@@ -129,21 +339,138 @@ class VehicleFactory {
     }
 }
 
+// booked ranges of one vehicle. a vehicle's bookings never overlap, so a TreeMap keyed by start
+// is enough of an interval tree: only the latest booking starting before the query end can clash.
+class BookingCalendar {
+    private final TreeMap<Long, Long> bookings = new TreeMap<>(); // start (Key) -> end (Value), both inclusive
+
+    public boolean isFree(long start, long end) {
+        if (start > end) throw new IllegalArgumentException("Booking ends before it starts: " + start + " > " + end);
+        Map.Entry<Long, Long> previous = bookings.floorEntry(end);
+        return previous == null || previous.getValue() < start;
+    }
+    public boolean book(long start, long end) {
+        if (!isFree(start, end)) return false;
+        bookings.put(start, end);
+        return true;
+    }
+    public void release(long start) {
+        bookings.remove(start);
+    }
+}
+
+// every booking in one store, ordered by start. any booking overlapping [start, end] must start
+// within the longest current booking's duration before start, so a query only visits that slice
+// of the map. durations are counted in a multiset, so the bound shrinks again when a long
+// booking is released.
+class StoreBookingIndex {
+    private static class Booking {
+        final Vehicle vehicle;
+        final long end;
+        Booking(Vehicle vehicle, long end) {
+            this.vehicle = vehicle;
+            this.end = end;
+        }
+    }
+    private final TreeMap<Long, List<Booking>> byStart = new TreeMap<>();
+    private final TreeMap<Long, Integer> durations = new TreeMap<>(); // duration (Key) -> bookings that long (Value)
+
+    public synchronized void add(Vehicle vehicle, long start, long end) {
+        byStart.computeIfAbsent(start, k -> new ArrayList<>()).add(new Booking(vehicle, end));
+        durations.merge(end - start, 1, Integer::sum);
+    }
+    public synchronized void remove(Vehicle vehicle, long start) {
+        List<Booking> bookings = byStart.get(start);
+        if (bookings == null) return;
+        for (Iterator<Booking> it = bookings.iterator(); it.hasNext(); ) {
+            Booking booking = it.next();
+            if (booking.vehicle != vehicle) continue;
+            it.remove();
+            durations.computeIfPresent(booking.end - start, (duration, count) -> count == 1 ? null : count - 1);
+        }
+        if (bookings.isEmpty()) byStart.remove(start);
+    }
+    synchronized long maxDuration() {
+        return durations.isEmpty() ? 0 : durations.lastKey();
+    }
+    public synchronized Set<Vehicle> bookedVehicles(long from, long to) {
+        // a window given back to front covers the same days
+        long start = Math.min(from, to);
+        long end = Math.max(from, to);
+        Set<Vehicle> booked = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (List<Booking> bookings : byStart.subMap(start - maxDuration(), true, end, true).values()) {
+            for (Booking booking : bookings) {
+                if (booking.end >= start) booked.add(booking.vehicle);
+            }
+        }
+        return booked;
+    }
+}
+
+// where a vehicle lives, as seen from the system-wide registration index
+class VehicleLocation {
+    final private CarStore store;
+    final private Vehicle vehicle;
+
+    public VehicleLocation(CarStore store, Vehicle vehicle) {
+        this.store = store;
+        this.vehicle = vehicle;
+    }
+    public CarStore getStore() {return store;}
+    public Vehicle getVehicle() {return vehicle;}
+}
+
+// registration number -> (store, vehicle) across every store in the system
+class VehicleRegistry {
+    final private Map<String, VehicleLocation> locations = new ConcurrentHashMap<>();
+
+    public void register(CarStore store, Vehicle vehicle) {
+        locations.put(vehicle.getRegistrationNumber(), new VehicleLocation(store, vehicle));
+    }
+    public void unregister(CarStore store, String registrationNumber) {
+        locations.computeIfPresent(registrationNumber, (reg, location) -> location.getStore() == store ? null : location);
+    }
+    public VehicleLocation find(String registrationNumber) {
+        return locations.get(registrationNumber);
+    }
+}
+
 class CarStore {
     final private String location;
     final private String name;
     private Map<String,Vehicle> vehicles; // Registration Number (Key) -> Vehicle (Value)
+    final private Map<VehicleType, Set<Vehicle>> vehiclesByType = new EnumMap<>(VehicleType.class);
+    final private StoreBookingIndex bookingIndex = new StoreBookingIndex();
+    private VehicleRegistry registry; // set while the store belongs to a CarRentalSystem
+    private static final AtomicInteger storeCounter = new AtomicInteger();
+    final private int storeId; // dense index for per-store lookup tables
 
     public CarStore(String location, String name) {
         this.location = location;
         this.name = name;
-        this.vehicles = new HashMap<>();
+        this.storeId = storeCounter.getAndIncrement();
+        this.vehicles = new ConcurrentHashMap<>();
+        for (VehicleType type : VehicleType.values()) vehiclesByType.put(type, ConcurrentHashMap.newKeySet());
     }
-    public void addVehicle(Vehicle vehicle) {
-        vehicles.put(vehicle.getRegistrationNumber(), vehicle); 
+    public synchronized void addVehicle(Vehicle vehicle) {
+        Vehicle replaced = vehicles.put(vehicle.getRegistrationNumber(), vehicle); 
+        if (replaced != null) vehiclesByType.get(replaced.getVehicleClass()).remove(replaced);
+        vehiclesByType.get(vehicle.getVehicleClass()).add(vehicle);
+        if (registry != null) registry.register(this, vehicle);
     } 
-    public void removeVehicle(String registrationNumber) {
-        vehicles.remove(registrationNumber);
+    public synchronized void removeVehicle(String registrationNumber) {
+        Vehicle removed = vehicles.remove(registrationNumber);
+        if (removed != null) vehiclesByType.get(removed.getVehicleClass()).remove(removed);
+        if (registry != null) registry.unregister(this, registrationNumber);
+    }
+    synchronized void attach(VehicleRegistry registry) {
+        this.registry = registry;
+        for (Vehicle vehicle : vehicles.values()) registry.register(this, vehicle);
+    }
+    synchronized void detach() {
+        if (registry == null) return;
+        for (String registrationNumber : vehicles.keySet()) registry.unregister(this, registrationNumber);
+        this.registry = null;
     }
 
     public boolean isVehicleAvailable(String RegistrationNumber) {
@@ -156,22 +483,310 @@ class CarStore {
     public Vehicle getVehicle(String registrationNumber) {
         return vehicles.get(registrationNumber);
     }
+    // vehicles with no booking overlapping the dates; only vehicles in maintenance are excluded
+    // by status, since a car rented today can still be free next week
     public List<Vehicle> getAvailableVehicles(Date startDate, Date endDate) {
+        return getAvailableVehicles(null, startDate, endDate);
+    }
+    // the same, limited to one vehicle class (null for any). the booked set comes from the index
+    // and only the vehicles of the asked-for class are visited to list the free ones
+    public List<Vehicle> getAvailableVehicles(VehicleType type, Date startDate, Date endDate) {
+        Set<Vehicle> booked = bookingIndex.bookedVehicles(startDate.getTime(), endDate.getTime());
         List<Vehicle> availableVehicles = new ArrayList<>();
-        for (Vehicle vehicle : vehicles.values()) {
-            if (vehicle.getRentalStatus() == VehicleStatus.AVAILABLE) {
-                availableVehicles.add(vehicle);
+        for (VehicleType vehicleClass : VehicleType.values()) {
+            if (type != null && type != vehicleClass) continue;
+            for (Vehicle vehicle : vehiclesByType.get(vehicleClass)) {
+                if (vehicle.getRentalStatus() != VehicleStatus.MAINTENANCE && !booked.contains(vehicle)) {
+                    availableVehicles.add(vehicle);
+                }
             }
         }
         return availableVehicles;
     }
+    public boolean addBooking(Reservation reservation) {
+        Vehicle vehicle = reservation.getVehicle();
+        long start = reservation.getStartDate().getTime();
+        long end = reservation.getEndDate().getTime();
+        if (!vehicle.getBookingCalendar().book(start, end)) return false;
+        bookingIndex.add(vehicle, start, end);
+        return true;
+    }
+    public void removeBooking(Reservation reservation) {
+        long start = reservation.getStartDate().getTime();
+        reservation.getVehicle().getBookingCalendar().release(start);
+        bookingIndex.remove(reservation.getVehicle(), start);
+    }
+    // share of the fleet already booked for some part of the window
+    public double getUtilization(Date startDate, Date endDate) {
+        int fleet = vehicles.size();
+        if (fleet == 0) return 0;
+        return (double) bookingIndex.bookedVehicles(startDate.getTime(), endDate.getTime()).size() / fleet;
+    }
     public String getLocation() {return location;}
     public String getName() {return name;}
+    public int getStoreId() {return storeId;}
+}
+
+// 64-bit ids that never collide within a process and keep growing across restarts. the high bits
+// come from the start-up time since a custom epoch (like a Snowflake timestamp), the low bits
+// from a shared counter.
+// each thread takes a block of BLOCK_SIZE ids at a time, so the shared counter is touched once
+// per block and ordinary allocation is a thread-local increment.
+class IdGenerator {
+    public static final IdGenerator USERS = new IdGenerator();
+    public static final IdGenerator RESERVATIONS = new IdGenerator();
+
+    private static final int BLOCK_SIZE = 1024;
+    private static final int COUNTER_BITS = 22;
+    private static final long EPOCH_MILLIS = 1704067200000L; // 2024-01-01T00:00:00Z
+
+    private final AtomicLong nextBlock;
+    private final ThreadLocal<long[]> block = ThreadLocal.withInitial(() -> new long[] {0, 0}); // next, limit
+
+    public IdGenerator() {
+        this(System.currentTimeMillis());
+    }
+    IdGenerator(long epochMillis) {
+        this.nextBlock = new AtomicLong((epochMillis - EPOCH_MILLIS) << COUNTER_BITS);
+    }
+    public long nextId() {
+        long[] range = block.get();
+        if (range[0] == range[1]) {
+            range[0] = nextBlock.getAndAdd(BLOCK_SIZE);
+            range[1] = range[0] + BLOCK_SIZE;
+        }
+        return range[0]++;
+    }
+}
+
+// editable pricing rules. every multiplier defaults to 1.0, so empty rules price exactly like
+// days * rentalPriceMultiplier.
+class PricingRules {
+    final private Map<Month, Double> seasonMultipliers = new EnumMap<>(Month.class);
+    final private Map<CarStore, Double> storeMultipliers = new HashMap<>();
+    final private Map<VehicleType, Double> classMultipliers = new EnumMap<>(VehicleType.class);
+    // demandMultipliers[i] applies when utilization is in [i/10, (i+1)/10); the last tier also covers 100%
+    final private double[] demandMultipliers = {1, 1, 1, 1, 1, 1, 1, 1, 1, 1};
+
+    public PricingRules season(Month month, double multiplier) {
+        seasonMultipliers.put(month, multiplier);
+        return this;
+    }
+    public PricingRules store(CarStore store, double multiplier) {
+        storeMultipliers.put(store, multiplier);
+        return this;
+    }
+    public PricingRules vehicleClass(VehicleType type, double multiplier) {
+        classMultipliers.put(type, multiplier);
+        return this;
+    }
+    public PricingRules demand(double fromUtilization, double multiplier) {
+        for (int tier = (int) Math.round(fromUtilization * 10); tier < demandMultipliers.length; tier++) {
+            demandMultipliers[tier] = multiplier;
+        }
+        return this;
+    }
+    Map<Month, Double> getSeasonMultipliers() {return seasonMultipliers;}
+    Map<CarStore, Double> getStoreMultipliers() {return storeMultipliers;}
+    Map<VehicleType, Double> getClassMultipliers() {return classMultipliers;}
+    double[] getDemandMultipliers() {return demandMultipliers;}
+}
+
+// PricingRules flattened into arrays: month boundaries for a range of years with the season
+// multiplier per month, and multipliers indexed by store id, vehicle class ordinal and demand
+// tier. a quote is a binary search plus one step per calendar month the rental touches, with
+// nothing allocated. each billed day takes the season of the month it starts in.
+class CompiledPricing {
+    private static final long DAY_MILLIS = 1000L * 60 * 60 * 24;
+    final private int fromYear;
+    final private int toYear;
+    final private long[] monthStarts;
+    final private double[] monthMultipliers;
+    final private double[] storeMultipliers;
+    final private double[] classMultipliers;
+    final private double[] demandMultipliers;
+
+    CompiledPricing(PricingRules rules, int fromYear, int toYear, int storeSlots) {
+        this.fromYear = fromYear;
+        this.toYear = toYear;
+        int months = (toYear - fromYear + 1) * 12;
+        // one extra boundary closes the last month, so every month has an end to price against
+        this.monthStarts = new long[months + 1];
+        this.monthMultipliers = new double[months];
+        YearMonth month = YearMonth.of(fromYear, 1);
+        for (int i = 0; i <= months; i++, month = month.plusMonths(1)) {
+            monthStarts[i] = month.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            if (i < months) monthMultipliers[i] = rules.getSeasonMultipliers().getOrDefault(month.getMonth(), 1.0);
+        }
+        this.storeMultipliers = new double[storeSlots];
+        Arrays.fill(storeMultipliers, 1.0);
+        for (Map.Entry<CarStore, Double> store : rules.getStoreMultipliers().entrySet()) {
+            if (store.getKey().getStoreId() < storeSlots) storeMultipliers[store.getKey().getStoreId()] = store.getValue();
+        }
+        this.classMultipliers = new double[VehicleType.values().length];
+        for (VehicleType type : VehicleType.values()) {
+            classMultipliers[type.ordinal()] = rules.getClassMultipliers().getOrDefault(type, 1.0);
+        }
+        this.demandMultipliers = rules.getDemandMultipliers().clone();
+    }
+
+    static long lastBilledDay(long startMillis, long endMillis) {
+        return Math.min(startMillis, endMillis) + (Math.abs(endMillis - startMillis) / DAY_MILLIS) * DAY_MILLIS;
+    }
+    static int yearOf(long millis) {
+        return Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC).getYear();
+    }
+    boolean covers(long startMillis, long endMillis) {
+        return Math.min(startMillis, endMillis) >= monthStarts[0]
+                && lastBilledDay(startMillis, endMillis) < monthStarts[monthStarts.length - 1];
+    }
+    int getFromYear() {return fromYear;}
+    int getToYear() {return toYear;}
+
+    double quote(Vehicle vehicle, int storeId, long startMillis, long endMillis, double utilization) {
+        long first = Math.min(startMillis, endMillis);
+        long days = (Math.abs(endMillis - startMillis) / DAY_MILLIS) + 1;
+        long lastDay = lastBilledDay(startMillis, endMillis);
+        if (!covers(startMillis, endMillis)) {
+            throw new IllegalArgumentException("Rental dates outside the priced calendar: "
+                    + Instant.ofEpochMilli(first) + " to " + Instant.ofEpochMilli(lastDay));
+        }
+        int month = Arrays.binarySearch(monthStarts, first);
+        if (month < 0) month = -month - 2;
+        // season-weighted day count: each month contributes the billed days that start inside it
+        double season = 0;
+        for (long day = 0; day < days; month++) {
+            long until = Math.min(days, (monthStarts[month + 1] - first + DAY_MILLIS - 1) / DAY_MILLIS);
+            season += (until - day) * monthMultipliers[month];
+            day = until;
+        }
+        double store = storeId >= 0 && storeId < storeMultipliers.length ? storeMultipliers[storeId] : 1.0;
+        int tier = Math.min(demandMultipliers.length - 1, Math.max(0, (int) (utilization * 10)));
+        return vehicle.rentalPriceMultiplier * season * store
+                * classMultipliers[vehicle.getVehicleClass().ordinal()] * demandMultipliers[tier];
+    }
+}
+
+// quotes rentals from the current CompiledPricing. reload compiles new rules off to the side and
+// swaps them in with one volatile write, so in-flight quotes always see one consistent table.
+// the tables start out covering FROM_YEAR..TO_YEAR; a quote for dates outside them recompiles
+// once with the range widened to those years, so no date is ever refused a price.
+class PricingEngine {
+    private static final int FROM_YEAR = 2020;
+    private static final int TO_YEAR = 2040;
+    private volatile CompiledPricing compiled;
+    private volatile PricingRules rules;
+
+    public PricingEngine(PricingRules rules) {
+        reload(rules);
+    }
+    public synchronized void reload(PricingRules rules) {
+        CompiledPricing current = compiled;
+        int fromYear = current == null ? FROM_YEAR : current.getFromYear();
+        int toYear = current == null ? TO_YEAR : current.getToYear();
+        this.compiled = compile(rules, fromYear, toYear);
+        this.rules = rules;
+    }
+    public double quote(Vehicle vehicle, CarStore store, long startMillis, long endMillis, double utilization) {
+        CompiledPricing table = compiled;
+        if (!table.covers(startMillis, endMillis)) table = widen(startMillis, endMillis);
+        return table.quote(vehicle, store == null ? -1 : store.getStoreId(), startMillis, endMillis, utilization);
+    }
+    private synchronized CompiledPricing widen(long startMillis, long endMillis) {
+        CompiledPricing current = compiled;
+        if (current.covers(startMillis, endMillis)) return current;
+        int fromYear = Math.min(current.getFromYear(), CompiledPricing.yearOf(Math.min(startMillis, endMillis)));
+        int toYear = Math.max(current.getToYear(), CompiledPricing.yearOf(CompiledPricing.lastBilledDay(startMillis, endMillis)));
+        this.compiled = compile(rules, fromYear, toYear);
+        return compiled;
+    }
+    private static CompiledPricing compile(PricingRules rules, int fromYear, int toYear) {
+        int storeSlots = 0;
+        for (CarStore store : rules.getStoreMultipliers().keySet()) storeSlots = Math.max(storeSlots, store.getStoreId() + 1);
+        return new CompiledPricing(rules, fromYear, toYear, storeSlots);
+    }
+    public PricingRules getRules() {
+        return rules;
+    }
+}
+
+// what a customer is looking for. type and location are optional; dates are required because
+// availability and price both depend on them. results are sorted by price, cheapest first.
+class FleetSearchCriteria {
+    private VehicleType vehicleType;
+    private String location;
+    private Date startDate;
+    private Date endDate;
+    private int page = 0;
+    private int pageSize = 20;
+
+    public FleetSearchCriteria vehicleType(VehicleType vehicleType) {
+        this.vehicleType = vehicleType;
+        return this;
+    }
+    public FleetSearchCriteria location(String location) {
+        this.location = location;
+        return this;
+    }
+    public FleetSearchCriteria dates(Date startDate, Date endDate) {
+        this.startDate = startDate;
+        this.endDate = endDate;
+        return this;
+    }
+    public FleetSearchCriteria page(int page, int pageSize) {
+        if (page < 0 || pageSize <= 0) throw new IllegalArgumentException("Invalid page: " + page + "/" + pageSize);
+        this.page = page;
+        this.pageSize = pageSize;
+        return this;
+    }
+    boolean matchesStore(CarStore store) {
+        return location == null || location.equalsIgnoreCase(store.getLocation());
+    }
+    public VehicleType getVehicleType() {return vehicleType;}
+    public String getLocation() {return location;}
+    public Date getStartDate() {return startDate;}
+    public Date getEndDate() {return endDate;}
+    public int getPage() {return page;}
+    public int getPageSize() {return pageSize;}
+}
+
+class FleetSearchHit {
+    final private CarStore store;
+    final private Vehicle vehicle;
+    final private double price;
+
+    public FleetSearchHit(CarStore store, Vehicle vehicle, double price) {
+        this.store = store;
+        this.vehicle = vehicle;
+        this.price = price;
+    }
+    public CarStore getStore() {return store;}
+    public Vehicle getVehicle() {return vehicle;}
+    public double getPrice() {return price;}
+}
+
+class FleetSearchPage {
+    final private List<FleetSearchHit> hits;
+    final private int totalHits;
+    final private int page;
+    final private int pageSize;
+
+    public FleetSearchPage(List<FleetSearchHit> hits, int totalHits, int page, int pageSize) {
+        this.hits = hits;
+        this.totalHits = totalHits;
+        this.page = page;
+        this.pageSize = pageSize;
+    }
+    public List<FleetSearchHit> getHits() {return hits;}
+    public int getTotalHits() {return totalHits;}
+    public int getPage() {return page;}
+    public int getPageSize() {return pageSize;}
+    public boolean hasNextPage() {return (long) (page + 1) * pageSize < totalHits;}
 }
 
 class User {
     final private String name;
-    final private int id ;
+    final private long id ;
     final private String email; 
     private List<Reservation> reservations;
 
@@ -179,7 +794,14 @@ class User {
         this.name = name;
         this.email = email;
         this.reservations = new ArrayList<>();
-        this.id = new Random().nextInt(1000);  
+        this.id = IdGenerator.USERS.nextId();
+    }
+    // event log replay: a user known only from the reservations it made
+    User(long id, String name, String email) {
+        this.name = name;
+        this.email = email;
+        this.reservations = new ArrayList<>();
+        this.id = id;
     }
     private boolean makeReservation(Reservation reservation) {
         reservations.add(reservation);
@@ -192,23 +814,29 @@ class User {
     private List<Reservation> getReservations() {
         return reservations;
     }
-    public int getId() {
+    public long getId() {
         return id;
     }
+    public String getName() {
+        return name;
+    }
+    public String getEmail() {
+        return email;
+    }
 }
 
 class Reservation {
-    final private int id;
+    final private long id;
     final private User user;
     final private Vehicle vehicle;
     final private Date startDate;
     final private Date endDate;
     private double totalAmount;
     final private PaymentStatus paymentStatus;
-    private ReservationStatus reservationStatus;
+    private volatile ReservationStatus reservationStatus;
 
     public Reservation(User user, Vehicle vehicle, Date startDate, Date endDate) {
-        this.id = new Random().nextInt(1000);  
+        this.id = IdGenerator.RESERVATIONS.nextId();
         this.user = user;
         this.vehicle = vehicle;
         this.startDate = startDate;
@@ -216,35 +844,45 @@ class Reservation {
         this.paymentStatus = PaymentStatus.PENDING;
         this.reservationStatus = ReservationStatus.PENDING;
     }
+    // event log replay: rebuilds an open reservation with its original id, price and status
+    Reservation(long id, User user, Vehicle vehicle, Date startDate, Date endDate, double totalAmount, ReservationStatus reservationStatus) {
+        this.id = id;
+        this.user = user;
+        this.vehicle = vehicle;
+        this.startDate = startDate;
+        this.endDate = endDate;
+        this.totalAmount = totalAmount;
+        this.paymentStatus = PaymentStatus.PENDING;
+        this.reservationStatus = reservationStatus;
+    }
     public double calculateTotalAmount() {
         long diffInMillies = Math.abs(endDate.getTime() - startDate.getTime());
         long diffInDays = (diffInMillies / (1000 * 60 * 60 * 24)) + 1; 
         totalAmount = diffInDays * vehicle.rentalPriceMultiplier;
         return totalAmount;
     }
-    public void confirmReservation() {
-        if(reservationStatus == ReservationStatus.PENDING) {
-            reservationStatus = ReservationStatus.CONFIRMED;
-        }
+    public double calculateTotalAmount(PricingEngine pricingEngine, CarStore store, double utilization) {
+        totalAmount = pricingEngine.quote(vehicle, store, startDate.getTime(), endDate.getTime(), utilization);
+        return totalAmount;
     }
-    public void cancelReservation() {
-        if(reservationStatus == ReservationStatus.PENDING 
-                || reservationStatus == ReservationStatus.CONFIRMED) {
-            reservationStatus = ReservationStatus.CANCELED;
-        }
+    // each returns false when the table in ReservationStateMachine does not allow the move
+    public boolean confirmReservation() {
+        return ReservationStateMachine.DEFAULT.transition(this, ReservationStatus.CONFIRMED);
     }
-    public void startRental() {
-        if(reservationStatus == ReservationStatus.CONFIRMED) {
-            reservationStatus = ReservationStatus.IN_PROGRESS;
-        }
+    public boolean cancelReservation() {
+        return ReservationStateMachine.DEFAULT.transition(this, ReservationStatus.CANCELED);
+    }
+    public boolean startRental() {
+        return ReservationStateMachine.DEFAULT.transition(this, ReservationStatus.IN_PROGRESS);
+    }
+    public boolean completeRental() {
+        return ReservationStateMachine.DEFAULT.transition(this, ReservationStatus.COMPLETED);
+    }
+    void setReservationStatus(ReservationStatus reservationStatus) {
+        this.reservationStatus = reservationStatus;
     }
-    public void completeRental() {
-        if(reservationStatus == ReservationStatus.IN_PROGRESS) {
-            reservationStatus = ReservationStatus.COMPLETED;
-        }
-    } 
 
-    public int getId() {return id;}
+    public long getId() {return id;}
     public User getUser() {return user;}
     public Vehicle getVehicle() {return vehicle;}
     public Date getStartDate() {return startDate;}
@@ -253,49 +891,461 @@ class Reservation {
     public ReservationStatus getReservationStatus() {return reservationStatus;}
 }
 
+// which ReservationStatus may follow which, as a table instead of checks spread over Reservation.
+// a transition and the vehicle status it implies (RENTED on start, AVAILABLE on completion) are
+// applied together under the vehicle's monitor, so no reader sees one without the other and two
+// reservations of the same car cannot both start. accepted and rejected moves are counted per
+// from/to pair.
+class ReservationStateMachine {
+    private static final int STATES = ReservationStatus.values().length;
+    public static final ReservationStateMachine DEFAULT = new ReservationStateMachine(); // after STATES, which it sizes from
+    final private Map<ReservationStatus, Set<ReservationStatus>> allowed = new EnumMap<>(ReservationStatus.class);
+    final private LongAdder[] transitions = new LongAdder[STATES * STATES];
+    final private LongAdder[] rejections = new LongAdder[STATES * STATES];
+
+    public ReservationStateMachine() {
+        allowed.put(ReservationStatus.PENDING, EnumSet.of(ReservationStatus.CONFIRMED, ReservationStatus.CANCELED));
+        allowed.put(ReservationStatus.CONFIRMED, EnumSet.of(ReservationStatus.IN_PROGRESS, ReservationStatus.CANCELED));
+        allowed.put(ReservationStatus.IN_PROGRESS, EnumSet.of(ReservationStatus.COMPLETED));
+        allowed.put(ReservationStatus.COMPLETED, EnumSet.noneOf(ReservationStatus.class));
+        allowed.put(ReservationStatus.CANCELED, EnumSet.noneOf(ReservationStatus.class));
+        for (int i = 0; i < transitions.length; i++) {
+            transitions[i] = new LongAdder();
+            rejections[i] = new LongAdder();
+        }
+    }
+
+    public boolean canTransition(ReservationStatus from, ReservationStatus to) {
+        return allowed.get(from).contains(to);
+    }
+
+    public boolean transition(Reservation reservation, ReservationStatus to) {
+        Vehicle vehicle = reservation.getVehicle();
+        synchronized (vehicle) {
+            ReservationStatus from = reservation.getReservationStatus();
+            // a car still out on another rental, or in maintenance, cannot be picked up
+            boolean vehicleReady = to != ReservationStatus.IN_PROGRESS || vehicle.getRentalStatus() == VehicleStatus.AVAILABLE;
+            if (!canTransition(from, to) || !vehicleReady) {
+                rejections[slot(from, to)].increment();
+                return false;
+            }
+            reservation.setReservationStatus(to);
+            if (to == ReservationStatus.IN_PROGRESS) vehicle.setRentalStatus(VehicleStatus.RENTED);
+            else if (to == ReservationStatus.COMPLETED) vehicle.setRentalStatus(VehicleStatus.AVAILABLE);
+            transitions[slot(from, to)].increment();
+            return true;
+        }
+    }
+
+    // counts a move asked of a reservation that is no longer held in memory, from its final status
+    public boolean reject(ReservationStatus from, ReservationStatus to) {
+        rejections[slot(from, to)].increment();
+        return false;
+    }
+
+    public long getTransitionCount(ReservationStatus from, ReservationStatus to) {
+        return transitions[slot(from, to)].sum();
+    }
+    public long getRejectionCount(ReservationStatus from, ReservationStatus to) {
+        return rejections[slot(from, to)].sum();
+    }
+    // one line per from/to pair seen so far, e.g. "CONFIRMED->IN_PROGRESS accepted=3 rejected=1"
+    public List<String> report() {
+        List<String> lines = new ArrayList<>();
+        for (ReservationStatus from : ReservationStatus.values()) {
+            for (ReservationStatus to : ReservationStatus.values()) {
+                long accepted = getTransitionCount(from, to);
+                long rejected = getRejectionCount(from, to);
+                if (accepted + rejected > 0) lines.add(from + "->" + to + " accepted=" + accepted + " rejected=" + rejected);
+            }
+        }
+        return lines;
+    }
+
+    private static int slot(ReservationStatus from, ReservationStatus to) {
+        return from.ordinal() * STATES + to.ordinal();
+    }
+}
+
 class ReservationManager {
-    private Map<Integer, Reservation> reservations; // Reservation ID (Key) -> Reservation (Value)
+    private Map<Long, Reservation> reservations; // Reservation ID (Key) -> Reservation (Value)
+    // final status of reservations that completed or were cancelled, so later moves on them are
+    // still rejected and counted by the state machine instead of vanishing on a missed lookup
+    final private Map<Long, ReservationStatus> finished = new ConcurrentHashMap<>();
+    private volatile ReservationEventLog eventLog; // every transition is appended here when set
 
     public ReservationManager() {
-        this.reservations = new HashMap<>();
+        this.reservations = new ConcurrentHashMap<>();
     }
     public Reservation createReservation(Reservation reservation) {
-        reservations.put(reservation.getId(), reservation);
+        synchronized (reservation.getVehicle()) {
+            reservations.put(reservation.getId(), reservation);
+            record(ReservationEventType.CREATED, reservation);
+        }
         return reservation;
     }
-    public boolean cancelReservation(int reservationId) {
-        return reservations.remove(reservationId) != null;
+    public void confirmReservation(long reservationId) {
+        apply(reservationId, ReservationEventType.CONFIRMED);
+    }
+    // only pending or confirmed reservations can be cancelled. the record then leaves the map,
+    // but its history stays in the event log
+    public boolean cancelReservation(long reservationId) {
+        return apply(reservationId, ReservationEventType.CANCELED);
     }
-    public Reservation getReservation(int reservationId) {
+    public Reservation getReservation(long reservationId) {
         return reservations.get(reservationId);
     }
-    public void startRental(int reservationId){
-        Reservation reservation  = reservations.get(reservationId);
-        if(reservation != null) {
-            reservation.startRental();
+    public ReservationStatus getFinalStatus(long reservationId) {
+        return finished.get(reservationId);
+    }
+    public void startRental(long reservationId){
+        apply(reservationId, ReservationEventType.STARTED);
+    }
+    // a completed rental leaves the map like a cancelled one; its history stays in the event log
+    public boolean completeRental(long reservationId){
+        return apply(reservationId, ReservationEventType.COMPLETED);
+    }
+    // the transition and its log record happen under the vehicle's monitor (the state machine
+    // takes it again, reentrantly), so two moves on one car are logged in the order they were made
+    private boolean apply(long reservationId, ReservationEventType type) {
+        Reservation reservation = reservations.get(reservationId);
+        if(reservation == null) {
+            ReservationStatus last = finished.get(reservationId);
+            return last != null && ReservationStateMachine.DEFAULT.reject(last, type.getStatus());
+        }
+        synchronized (reservation.getVehicle()) {
+            if(!ReservationStateMachine.DEFAULT.transition(reservation, type.getStatus())) return false;
+            if(type.isTerminal()) {
+                finished.put(reservationId, type.getStatus());
+                reservations.remove(reservationId);
+            }
+            record(type, reservation);
+            return true;
+        }
+    }
+    // attaches the log and brings back every reservation that was still open when it was last
+    // written. vehicles are looked up by registration number; ones no longer in the fleet are skipped.
+    public List<Reservation> restore(ReservationEventLog eventLog, Function<String, Vehicle> vehicleLookup) {
+        Map<Long, User> users = new HashMap<>();
+        List<Reservation> restored = new ArrayList<>();
+        for (ReservationEventLog.ReservationRecord record : eventLog.openReservations()) {
+            Vehicle vehicle = vehicleLookup.apply(record.registrationNumber);
+            if(vehicle == null) continue;
+            User user = users.computeIfAbsent(record.userId, id -> new User(id, record.userName, record.userEmail));
+            Reservation reservation = new Reservation(record.id, user, vehicle, new Date(record.startMillis),
+                    new Date(record.endMillis), record.totalAmount, record.status);
+            if(record.status == ReservationStatus.IN_PROGRESS) vehicle.setRentalStatus(VehicleStatus.RENTED);
+            reservations.put(reservation.getId(), reservation);
+            restored.add(reservation);
+        }
+        this.eventLog = eventLog;
+        return restored;
+    }
+    public List<ReservationEvent> history(long reservationId) {
+        if(eventLog == null) throw new IllegalStateException("No event log configured.");
+        try {
+            return eventLog.history(reservationId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    private void record(ReservationEventType type, Reservation reservation) {
+        ReservationEventLog log = eventLog;
+        if(log == null) return;
+        try {
+            log.append(type, reservation);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+enum ReservationEventType {
+    CREATED(ReservationStatus.PENDING),
+    CONFIRMED(ReservationStatus.CONFIRMED),
+    STARTED(ReservationStatus.IN_PROGRESS),
+    COMPLETED(ReservationStatus.COMPLETED),
+    CANCELED(ReservationStatus.CANCELED);
+
+    final private ReservationStatus status; // status the reservation is in after the event
+
+    ReservationEventType(ReservationStatus status) {
+        this.status = status;
+    }
+    public ReservationStatus getStatus() {return status;}
+    public boolean isTerminal() {return this == COMPLETED || this == CANCELED;}
+}
+
+class ReservationEvent {
+    final private ReservationEventType type;
+    final private long reservationId;
+    final private long epochMillis;
+
+    public ReservationEvent(ReservationEventType type, long reservationId, long epochMillis) {
+        this.type = type;
+        this.reservationId = reservationId;
+        this.epochMillis = epochMillis;
+    }
+    public ReservationEventType getType() {return type;}
+    public long getReservationId() {return reservationId;}
+    public long getEpochMillis() {return epochMillis;}
+}
+
+// append-only log of reservation transitions. each record is [int length][payload]; a transition
+// payload is type, reservation id and time (17 bytes), a CREATED payload also carries the user,
+// registration number, dates and price.
+// only open reservations are kept in memory, as flat records. every snapshotInterval events they
+// are written to a snapshot file together with the log offset they cover, so a restart loads the
+// snapshot and replays just the tail. the log itself is never rewritten; history queries scan it
+// from disk. records are flushed to the OS per event and forced to disk at each snapshot and on close.
+class ReservationEventLog implements AutoCloseable {
+    private static final int SNAPSHOT_MAGIC = 0x52455631; // "REV1"
+
+    static class ReservationRecord {
+        long id;
+        long userId;
+        String userName;
+        String userEmail;
+        String registrationNumber;
+        long startMillis;
+        long endMillis;
+        double totalAmount;
+        ReservationStatus status;
+    }
+
+    private final Path file;
+    private final Path snapshotFile;
+    private final int snapshotInterval;
+    private final Map<Long, ReservationRecord> open = new HashMap<>();
+    private final ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(128);
+    private final DataOutputStream payload = new DataOutputStream(payloadBytes);
+    private final FileOutputStream fileOut;
+    private final DataOutputStream out;
+    private long position;
+    private int sinceSnapshot;
+
+    public ReservationEventLog(Path file, int snapshotInterval) throws IOException {
+        this.file = file;
+        this.snapshotFile = file.resolveSibling(file.getFileName() + ".snapshot");
+        this.snapshotInterval = snapshotInterval;
+        this.position = replay(loadSnapshot());
+        // drop a record torn by a crash mid-write before appending after it
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(position);
+        }
+        this.fileOut = new FileOutputStream(file.toFile(), true);
+        this.out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    }
+
+    private long loadSnapshot() throws IOException {
+        if (!Files.exists(snapshotFile)) return 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a reservation snapshot: " + snapshotFile);
+            long covered = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                ReservationRecord record = new ReservationRecord();
+                record.id = in.readLong();
+                readFields(in, record);
+                record.status = ReservationStatus.values()[in.readByte()];
+                open.put(record.id, record);
+            }
+            return covered;
+        }
+    }
+
+    // applies every complete record from offset on and returns where the last one ended
+    private long replay(long offset) throws IOException {
+        if (!Files.exists(file)) return 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            in.skipNBytes(offset);
+            long end = offset;
+            byte[] buffer = new byte[128];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length <= 0) break;
+                    if (buffer.length < length) buffer = new byte[length];
+                    in.readFully(buffer, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(buffer, 0, length)));
+                end += Integer.BYTES + length;
+            }
+            return end;
         }
     }
-    public void completeRental(int reservationId){
-        Reservation reservation  = reservations.get(reservationId);
-        if(reservation != null) {
-            reservation.completeRental();
+
+    private void apply(DataInputStream in) throws IOException {
+        ReservationEventType type = ReservationEventType.values()[in.readByte()];
+        long reservationId = in.readLong();
+        in.readLong(); // event time, only needed by history
+        if (type == ReservationEventType.CREATED) {
+            ReservationRecord record = readFields(in, new ReservationRecord());
+            record.id = reservationId;
+            record.status = type.getStatus();
+            open.put(reservationId, record);
+            return;
         }
+        ReservationRecord record = open.get(reservationId);
+        if (record == null) return;
+        if (type.isTerminal()) open.remove(reservationId);
+        else record.status = type.getStatus();
+    }
+
+    // the fields shared by CREATED payloads and snapshot entries
+    private ReservationRecord readFields(DataInputStream in, ReservationRecord record) throws IOException {
+        record.userId = in.readLong();
+        record.userName = in.readUTF();
+        record.userEmail = in.readUTF();
+        record.registrationNumber = in.readUTF();
+        record.startMillis = in.readLong();
+        record.endMillis = in.readLong();
+        record.totalAmount = in.readDouble();
+        return record;
+    }
+
+    private void writeFields(DataOutputStream out, ReservationRecord record) throws IOException {
+        out.writeLong(record.userId);
+        out.writeUTF(record.userName);
+        out.writeUTF(record.userEmail);
+        out.writeUTF(record.registrationNumber);
+        out.writeLong(record.startMillis);
+        out.writeLong(record.endMillis);
+        out.writeDouble(record.totalAmount);
+    }
+
+    public synchronized void append(ReservationEventType type, Reservation reservation) throws IOException {
+        payloadBytes.reset();
+        payload.writeByte(type.ordinal());
+        payload.writeLong(reservation.getId());
+        payload.writeLong(System.currentTimeMillis());
+        if (type == ReservationEventType.CREATED) {
+            ReservationRecord record = new ReservationRecord();
+            record.id = reservation.getId();
+            record.userId = reservation.getUser().getId();
+            record.userName = reservation.getUser().getName();
+            record.userEmail = reservation.getUser().getEmail();
+            record.registrationNumber = reservation.getVehicle().getRegistrationNumber();
+            record.startMillis = reservation.getStartDate().getTime();
+            record.endMillis = reservation.getEndDate().getTime();
+            record.totalAmount = reservation.getTotalAmount();
+            record.status = type.getStatus();
+            writeFields(payload, record);
+            open.put(record.id, record);
+        } else {
+            ReservationRecord record = open.get(reservation.getId());
+            if (record != null) {
+                if (type.isTerminal()) open.remove(record.id);
+                else record.status = type.getStatus();
+            }
+        }
+        out.writeInt(payloadBytes.size());
+        payloadBytes.writeTo(out);
+        out.flush();
+        position += Integer.BYTES + payloadBytes.size();
+        if (++sinceSnapshot >= snapshotInterval) snapshot();
+    }
+
+    // forces the log, then swaps in a snapshot of the open reservations covering it
+    public synchronized void snapshot() throws IOException {
+        out.flush();
+        fileOut.getFD().sync();
+        Path temp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileOutputStream snapshotOut = new FileOutputStream(temp.toFile());
+             DataOutputStream data = new DataOutputStream(new BufferedOutputStream(snapshotOut))) {
+            data.writeInt(SNAPSHOT_MAGIC);
+            data.writeLong(position);
+            data.writeInt(open.size());
+            for (ReservationRecord record : open.values()) {
+                data.writeLong(record.id);
+                writeFields(data, record);
+                data.writeByte(record.status.ordinal());
+            }
+            data.flush();
+            snapshotOut.getFD().sync();
+        }
+        Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        sinceSnapshot = 0;
+    }
+
+    public synchronized List<ReservationRecord> openReservations() {
+        return new ArrayList<>(open.values());
+    }
+
+    // every event for one reservation, oldest first, read back from the log file
+    public synchronized List<ReservationEvent> history(long reservationId) throws IOException {
+        out.flush();
+        List<ReservationEvent> events = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            long read = 0;
+            while (read < position) {
+                int length = in.readInt();
+                byte type = in.readByte();
+                long id = in.readLong();
+                long epochMillis = in.readLong();
+                in.skipNBytes(length - 1 - 2 * Long.BYTES);
+                if (id == reservationId) events.add(new ReservationEvent(ReservationEventType.values()[type], id, epochMillis));
+                read += Integer.BYTES + length;
+            }
+        }
+        return events;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.flush();
+        fileOut.getFD().sync();
+        out.close();
     }
 }
- 
+
+// a fixed pool of locks picked by key hash: bookings for the same vehicle serialize,
+// bookings for different vehicles almost never share a lock
+class StripedLocks {
+    final private ReentrantLock[] locks;
+
+    public StripedLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) locks[i] = new ReentrantLock();
+    }
+    public ReentrantLock lockFor(String key) {
+        int hash = key.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (locks.length - 1)];
+    }
+}
+
 class CarRentalSystem {
     private static CarRentalSystem instance;
     final private List<CarStore> stores;  
     final private VehicleFactory vehicleFactory; 
     final private ReservationManager reservationManager;  
     final private PaymentProcessor paymentProcessor;  
+    final private VehicleRegistry vehicleRegistry;
+    final private StripedLocks vehicleLocks;
+    final private PricingEngine pricingEngine;
+    // settles reservations once their payment answers, off whatever thread completed the charge
+    final private ExecutorService confirmations;
+    final private IdempotencyCache<Reservation> reservationRequests = new IdempotencyCache<>(10_000);
     // private List<SystemObserver> observers;
     
-    private CarRentalSystem() {
-        this.stores = new ArrayList<>();
+    // package-private so tests can run against a system of their own; everything else uses getInstance
+    CarRentalSystem() {
+        this.stores = new CopyOnWriteArrayList<>();
         this.vehicleFactory = new VehicleFactory();
         this.reservationManager = new ReservationManager();
-        this.paymentProcessor = new PaymentProcessor();
+        this.paymentProcessor = new PaymentProcessor(new DirectPaymentGateway(), 64);
+        this.vehicleRegistry = new VehicleRegistry();
+        this.vehicleLocks = new StripedLocks(256);
+        this.pricingEngine = new PricingEngine(new PricingRules());
+        this.confirmations = Executors.newFixedThreadPool(4, runnable -> {
+            Thread thread = new Thread(runnable, "reservation-confirmations");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
     public static synchronized CarRentalSystem getInstance() {
         if(instance == null) {
@@ -305,25 +1355,102 @@ class CarRentalSystem {
     }
     public void addStore(CarStore store) {
         stores.add(store);
+        store.attach(vehicleRegistry);
     }
     public Vehicle findVehicle(String registrationNumber) {
-        for(CarStore store : stores) {
-            Vehicle vehicle = store.getVehicle(registrationNumber);
-            if(vehicle != null) return vehicle;
-        }
-        return null;
+        VehicleLocation location = vehicleRegistry.find(registrationNumber);
+        return location == null ? null : location.getVehicle();
+    }
+    public CarStore findStore(String registrationNumber) {
+        VehicleLocation location = vehicleRegistry.find(registrationNumber);
+        return location == null ? null : location.getStore();
     }
-    public void startRental(int reservationId){
+    public Reservation getReservation(long reservationId) {
+        return reservationManager.getReservation(reservationId);
+    }
+    public void startRental(long reservationId){
         reservationManager.startRental(reservationId);
     }
-    public void completeRental(int reservationId){
-        reservationManager.completeRental(reservationId);
+    // the car is back, so its booked dates are released just as a restart would find them: the
+    // event log only brings back reservations that were still open
+    public void completeRental(long reservationId){
+        Reservation reservation = reservationManager.getReservation(reservationId);
+        if(reservation == null) {
+            reservationManager.completeRental(reservationId);
+            return;
+        }
+        String registrationNumber = reservation.getVehicle().getRegistrationNumber();
+        ReentrantLock lock = vehicleLocks.lockFor(registrationNumber);
+        lock.lock();
+        try {
+            if(reservationManager.completeRental(reservationId)) {
+                CarStore store = findStore(registrationNumber);
+                if(store != null) store.removeBooking(reservation);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    public void cancelReservation(long reservationId){
+        Reservation reservation = reservationManager.getReservation(reservationId);
+        if(reservation == null) {
+            // already finished (or unknown): the manager counts the rejected move
+            reservationManager.cancelReservation(reservationId);
+            return;
+        }
+        String registrationNumber = reservation.getVehicle().getRegistrationNumber();
+        ReentrantLock lock = vehicleLocks.lockFor(registrationNumber);
+        lock.lock();
+        try {
+            if(reservationManager.cancelReservation(reservationId)) {
+                CarStore store = findStore(registrationNumber);
+                if(store != null) store.removeBooking(reservation);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    // attaches the event log and re-books every reservation that was open when it was written
+    public int recoverReservations(ReservationEventLog eventLog) {
+        List<Reservation> restored = reservationManager.restore(eventLog, this::findVehicle);
+        for (Reservation reservation : restored) {
+            CarStore store = findStore(reservation.getVehicle().getRegistrationNumber());
+            if(store != null) store.addBooking(reservation);
+        }
+        return restored.size();
+    }
+    public List<ReservationEvent> getReservationHistory(long reservationId) {
+        return reservationManager.history(reservationId);
     }
-    public void cancelReservation(int reservationId){
-        reservationManager.cancelReservation(reservationId);
+    public PricingEngine getPricingEngine() {
+        return pricingEngine;
+    }
+    // one pass over every store on the common fork/join pool: each store filters its own free
+    // vehicles and prices them at its own utilization, then the hits are sorted by price (ties by
+    // registration number, so pages are stable) and the requested page is cut out
+    public FleetSearchPage searchFleet(FleetSearchCriteria criteria) {
+        Date startDate = criteria.getStartDate();
+        Date endDate = criteria.getEndDate();
+        if(startDate == null || endDate == null) throw new IllegalArgumentException("Search needs a start and end date");
+        long start = startDate.getTime();
+        long end = endDate.getTime();
+        List<FleetSearchHit> hits = stores.parallelStream()
+                .filter(criteria::matchesStore)
+                .flatMap(store -> {
+                    double utilization = store.getUtilization(startDate, endDate);
+                    return store.getAvailableVehicles(criteria.getVehicleType(), startDate, endDate).stream()
+                            .map(vehicle -> new FleetSearchHit(store, vehicle, pricingEngine.quote(vehicle, store, start, end, utilization)));
+                })
+                .sorted(Comparator.comparingDouble(FleetSearchHit::getPrice)
+                        .thenComparing(hit -> hit.getVehicle().getRegistrationNumber()))
+                .collect(Collectors.toList());
+        int from = (int) Math.min(hits.size(), (long) criteria.getPage() * criteria.getPageSize());
+        int to = (int) Math.min(hits.size(), (long) from + criteria.getPageSize());
+        return new FleetSearchPage(new ArrayList<>(hits.subList(from, to)), hits.size(), criteria.getPage(), criteria.getPageSize());
     }
     public void removeStore(CarStore store) {
         stores.remove(store);
+        store.detach();
     }
     public Reservation reserveVehicle(
                                         User user,
@@ -332,15 +1459,766 @@ class CarRentalSystem {
                                         Date endDate,
                                         PaymentStrategy paymentStrategy
                                     ) {
-        Vehicle vehicle = findVehicle(registrationNumber);
-        if(vehicle == null) throw new RuntimeException("Vehicle not found");
+        try {
+            return reserveVehicleAsync(user, registrationNumber, startDate, endDate, paymentStrategy).join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+    // without a key from the caller, the same user asking for the same car and dates is taken to
+    // be a retry of the same request
+    public CompletableFuture<Reservation> reserveVehicleAsync(
+                                        User user,
+                                        String registrationNumber,
+                                        Date startDate,
+                                        Date endDate,
+                                        PaymentStrategy paymentStrategy
+                                    ) {
+        String idempotencyKey = user.getId() + "/" + registrationNumber + "/"
+                + (startDate == null ? "" : startDate.getTime()) + "/" + (endDate == null ? "" : endDate.getTime());
+        return reserveVehicleAsync(idempotencyKey, user, registrationNumber, startDate, endDate, paymentStrategy);
+    }
+    // a request resubmitted under the same idempotency key gets the first attempt's reservation
+    // rather than a second booking and charge; a failed attempt frees the key for another try.
+    // the car is booked under its stripe lock before payment starts, so the dates stay held while
+    // the gateway answers and no lock is kept across the round trip. once the payment settles the
+    // reservation is confirmed, or the booking is released again, on the confirmations pool so the
+    // lock and the event log write never run on the gateway's threads.
+    public CompletableFuture<Reservation> reserveVehicleAsync(
+                                        String idempotencyKey,
+                                        User user,
+                                        String registrationNumber,
+                                        Date startDate,
+                                        Date endDate,
+                                        PaymentStrategy paymentStrategy
+                                    ) {
+        CompletableFuture<Reservation> created = new CompletableFuture<>();
+        CompletableFuture<Reservation> existing = reservationRequests.putIfAbsent(idempotencyKey, created);
+        if(existing != null) return existing;
+        book(idempotencyKey, user, registrationNumber, startDate, endDate, paymentStrategy).whenComplete((reservation, error) -> {
+            if(error != null) created.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+            else created.complete(reservation);
+        });
+        return created;
+    }
+    private CompletableFuture<Reservation> book(
+                                        String idempotencyKey,
+                                        User user,
+                                        String registrationNumber,
+                                        Date startDate,
+                                        Date endDate,
+                                        PaymentStrategy paymentStrategy
+                                    ) {
+        VehicleLocation location = vehicleRegistry.find(registrationNumber);
+        if(location == null) return CompletableFuture.failedFuture(new RuntimeException("Vehicle not found"));
+        if(startDate == null || endDate == null) return CompletableFuture.failedFuture(new IllegalArgumentException("Rental dates are required"));
+        // dates given back to front book the same days, as the price always allowed
+        if(startDate.after(endDate)) {
+            Date first = endDate;
+            endDate = startDate;
+            startDate = first;
+        }
+        CarStore store = location.getStore();
+        Vehicle vehicle = location.getVehicle();
         Reservation reservation = new Reservation(user, vehicle, startDate, endDate);
-        double amount = reservation.calculateTotalAmount();
-        boolean paymentSuccess = paymentProcessor.processPayment(amount, paymentStrategy);
-        if(!paymentSuccess) throw new RuntimeException("Payment Failed");
-        reservation.confirmReservation();
-        reservationManager.createReservation(reservation);
-        return reservation;
+        ReentrantLock lock = vehicleLocks.lockFor(registrationNumber);
+        double amount;
+        try {
+            amount = reservation.calculateTotalAmount(pricingEngine, store, store.getUtilization(startDate, endDate));
+            lock.lock();
+            try {
+                if(!store.addBooking(reservation)) {
+                    return CompletableFuture.failedFuture(new RuntimeException("Vehicle not available for the selected dates"));
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return paymentProcessor.processPaymentAsync("reservation-" + idempotencyKey, amount, paymentStrategy)
+                .handleAsync((paid, error) -> {
+                    boolean paymentSuccess = error == null && paid;
+                    lock.lock();
+                    try {
+                        if(!paymentSuccess) {
+                            store.removeBooking(reservation);
+                            throw new RuntimeException("Payment Failed", error);
+                        }
+                        reservationManager.createReservation(reservation);
+                        reservationManager.confirmReservation(reservation.getId());
+                    } finally {
+                        lock.unlock();
+                    }
+                    return reservation;
+                }, confirmations);
+    }
+    public PaymentProcessor getPaymentProcessor() {
+        return paymentProcessor;
+    }
+}
+
+// testing CarRentalSystem with all testcases
+class CarRentalTester {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    /* =============================
+       TEST CASES
+    ============================== */
+
+    public void runAllTests() {
+        testRestartRestoresReservations();
+        testOverlappingBookingsAcceptedOnce();
+        testRetriedReservationsChargedOnce();
+        testPaymentsInFlightCapped();
+        testFinishedReservationsRejectMoves();
+        testBookingDatesPricedAnywhere();
+        testBookingOverlapQueries();
+        testIdsUniqueAcrossThreads();
+    }
+
+    private void printResult(String testName, boolean result) {
+        System.out.println(testName + " : " + (result ? "PASS" : "FAIL"));
+        System.out.println("-----------------------------------");
+    }
+
+    private static CarStore storeWithFleet(CarRentalSystem system, String prefix, int vehicles) {
+        CarStore store = new CarStore("Boston", prefix + " Rentals");
+        for (int i = 0; i < vehicles; i++) {
+            store.addVehicle(new Economy(prefix + i, "Toyota Corolla", prefix + "REG" + i, 50.0, VehicleStatus.AVAILABLE));
+        }
+        system.addStore(store);
+        return store;
+    }
+
+    private static Date utcDate(int year, int month, int day) {
+        return Date.from(YearMonth.of(year, month).atDay(day).atStartOfDay(ZoneOffset.UTC).toInstant());
+    }
+
+    /* =============================
+       TEST 1: Restart Restores Reservations
+    ============================== */
+
+    private void testRestartRestoresReservations() {
+        Path file = null;
+        try {
+            file = Files.createTempFile("reservation-events", ".log");
+            Path snapshot = file.resolveSibling(file.getFileName() + ".snapshot");
+            User user = new User("Jane Smith", "jane@email.com");
+            Date startDate = new Date(System.currentTimeMillis() + DAY);
+            Date endDate = new Date(startDate.getTime() + 2 * DAY);
+            long[] ids = new long[4];
+            boolean completedLeftMap;
+            long intactBytes;
+            // the completed and the cancelled car are free again, before and after the restart
+            Set<String> availableBefore = new HashSet<>();
+
+            // snapshot every 3 events, so the restart loads a snapshot and replays a tail behind it
+            try (ReservationEventLog log = new ReservationEventLog(file, 3)) {
+                CarRentalSystem before = new CarRentalSystem();
+                CarStore beforeStore = storeWithFleet(before, "RST", 4);
+                before.recoverReservations(log);
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = before.reserveVehicle(user, "RSTREG" + i, startDate, endDate, amount -> { }).getId();
+                }
+                before.startRental(ids[0]);
+                before.completeRental(ids[0]);
+                before.cancelReservation(ids[1]);
+                before.startRental(ids[2]);
+                completedLeftMap = before.getReservation(ids[0]) == null;
+                for (Vehicle vehicle : beforeStore.getAvailableVehicles(startDate, endDate)) {
+                    availableBefore.add(vehicle.getRegistrationNumber());
+                }
+            }
+            intactBytes = Files.size(file);
+
+            // a crash mid-write leaves half a record behind
+            Files.write(file, new byte[] { 0, 0, 0, 40, 1, 2 }, StandardOpenOption.APPEND);
+
+            try (ReservationEventLog log = new ReservationEventLog(file, 3)) {
+                boolean truncated = Files.size(file) == intactBytes;
+                CarRentalSystem after = new CarRentalSystem();
+                CarStore store = storeWithFleet(after, "RST", 4);
+                int restored = after.recoverReservations(log);
+
+                Reservation rented = after.getReservation(ids[2]);
+                Reservation confirmed = after.getReservation(ids[3]);
+                boolean restoredStates =
+                        rented != null && rented.getReservationStatus() == ReservationStatus.IN_PROGRESS &&
+                        rented.getVehicle().getRentalStatus() == VehicleStatus.RENTED &&
+                        confirmed != null && confirmed.getReservationStatus() == ReservationStatus.CONFIRMED &&
+                        confirmed.getUser().getName().equals("Jane Smith") &&
+                        after.getReservation(ids[0]) == null &&
+                        after.getReservation(ids[1]) == null;
+                Set<String> available = new HashSet<>();
+                for (Vehicle vehicle : store.getAvailableVehicles(startDate, endDate)) {
+                    available.add(vehicle.getRegistrationNumber());
+                }
+                List<ReservationEventType> completedHistory = new ArrayList<>();
+                for (ReservationEvent event : after.getReservationHistory(ids[0])) {
+                    completedHistory.add(event.getType());
+                }
+
+                // the reopened log keeps appending after the truncated tail
+                after.completeRental(ids[2]);
+                List<ReservationEvent> rentedHistory = after.getReservationHistory(ids[2]);
+
+                boolean passed =
+                        completedLeftMap &&
+                        truncated &&
+                        Files.exists(snapshot) &&
+                        restored == 2 &&
+                        restoredStates &&
+                        available.equals(Set.of("RSTREG0", "RSTREG1")) &&
+                        available.equals(availableBefore) &&
+                        completedHistory.equals(List.of(ReservationEventType.CREATED, ReservationEventType.CONFIRMED,
+                                ReservationEventType.STARTED, ReservationEventType.COMPLETED)) &&
+                        rentedHistory.get(rentedHistory.size() - 1).getType() == ReservationEventType.COMPLETED &&
+                        after.getReservation(ids[2]) == null;
+
+                printResult("Test Restart Restores Reservations", passed);
+            }
+
+        } catch (Exception e) {
+            printResult("Test Restart Restores Reservations", false);
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                    Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".snapshot"));
+                } catch (IOException e) {
+                    // temp file, nothing to do
+                }
+            }
+        }
+    }
+
+    /* =============================
+       TEST 2: Overlapping Bookings Accepted Once
+    ============================== */
+
+    // 400 requests over 50 cars from 8 threads; each car gets 8 requests for overlapping 2-day
+    // windows, so exactly one per car may win
+    private void testOverlappingBookingsAcceptedOnce() {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            CarRentalSystem system = new CarRentalSystem();
+            storeWithFleet(system, "OVL", 50);
+            long base = System.currentTimeMillis() + DAY;
+            AtomicInteger accepted = new AtomicInteger();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> requests = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                int request = i;
+                requests.add(pool.submit(() -> {
+                    start.await();
+                    Date startDate = new Date(base + (request % 3) * DAY);
+                    try {
+                        system.reserveVehicle(new User("Racer" + request, "racer@email.com"), "OVLREG" + (request % 50),
+                                startDate, new Date(startDate.getTime() + 2 * DAY), amount -> { });
+                        accepted.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        // lost the race for these dates
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> request : requests) {
+                request.get();
+            }
+
+            boolean passed = accepted.get() == 50;
+
+            printResult("Test Overlapping Bookings Accepted Once", passed);
+
+        } catch (Exception e) {
+            printResult("Test Overlapping Bookings Accepted Once", false);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /* =============================
+       TEST 3: Retried Reservations Charged Once
+    ============================== */
+
+    private void testRetriedReservationsChargedOnce() {
+        try {
+            CarRentalSystem system = new CarRentalSystem();
+            storeWithFleet(system, "IDM", 1);
+            User user = new User("John Doe", "john@email.com");
+            AtomicInteger charges = new AtomicInteger();
+            PaymentStrategy counting = amount -> charges.incrementAndGet();
+            Date week = new Date(System.currentTimeMillis() + 7 * DAY);
+
+            // the client resends its own key
+            Reservation first = system.reserveVehicleAsync("order-1", user, "IDMREG0", week,
+                    new Date(week.getTime() + DAY), counting).join();
+            Reservation resent = system.reserveVehicleAsync("order-1", user, "IDMREG0", week,
+                    new Date(week.getTime() + DAY), counting).join();
+
+            // no key: the same user, car and dates count as the same request
+            Date later = new Date(week.getTime() + 3 * DAY);
+            Reservation derived = system.reserveVehicle(user, "IDMREG0", later, new Date(later.getTime() + DAY), counting);
+            Reservation derivedAgain = system.reserveVehicle(user, "IDMREG0", later, new Date(later.getTime() + DAY), counting);
+
+            // a declined attempt frees its key for the retry
+            Date after = new Date(week.getTime() + 6 * DAY);
+            boolean declined = false;
+            try {
+                system.reserveVehicleAsync("order-2", user, "IDMREG0", after, new Date(after.getTime() + DAY), amount -> {
+                    throw new IllegalStateException("card declined");
+                }).join();
+            } catch (CompletionException e) {
+                declined = true;
+            }
+            Reservation retried = system.reserveVehicleAsync("order-2", user, "IDMREG0", after,
+                    new Date(after.getTime() + DAY), counting).join();
+
+            boolean passed =
+                    first == resent &&
+                    derived == derivedAgain &&
+                    declined &&
+                    retried != null &&
+                    charges.get() == 3;
+
+            printResult("Test Retried Reservations Charged Once", passed);
+
+        } catch (Exception e) {
+            printResult("Test Retried Reservations Charged Once", false);
+        }
+    }
+
+    /* =============================
+       TEST 4: Payments In Flight Capped
+    ============================== */
+
+    // a gateway that never answers on its own: 10 payments against a cap of 3 in flight and a
+    // cache of 4 remembered keys
+    private void testPaymentsInFlightCapped() {
+        try {
+            List<CompletableFuture<Boolean>> calls = new ArrayList<>();
+            AtomicInteger mostOutstanding = new AtomicInteger();
+            PaymentGateway manual = (idempotencyKey, amount, paymentStrategy) -> {
+                CompletableFuture<Boolean> call = new CompletableFuture<>();
+                calls.add(call);
+                int outstanding = 0;
+                for (CompletableFuture<Boolean> pending : calls) {
+                    if (!pending.isDone()) outstanding++;
+                }
+                mostOutstanding.accumulateAndGet(outstanding, Math::max);
+                return call;
+            };
+            PaymentProcessor processor = new PaymentProcessor(manual, 3, 4);
+            List<CompletableFuture<Boolean>> payments = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                payments.add(processor.processPaymentAsync("charge-" + i, 10.0, amount -> { }));
+            }
+            boolean capped = calls.size() == 3 && processor.getAvailableSlots() == 0;
+            // nothing has answered, yet the cache is already held to its cap
+            boolean bounded = processor.getRememberedPayments() == 4;
+
+            // answering one call starts the next queued payment on the same thread
+            for (int i = 0; i < calls.size(); i++) {
+                calls.get(i).complete(true);
+            }
+            boolean allPaid = true;
+            for (CompletableFuture<Boolean> payment : payments) {
+                allPaid &= payment.isDone() && payment.join();
+            }
+
+            boolean passed =
+                    capped &&
+                    bounded &&
+                    allPaid &&
+                    calls.size() == 10 &&
+                    mostOutstanding.get() == 3 &&
+                    processor.getAvailableSlots() == 3;
+
+            printResult("Test Payments In Flight Capped", passed);
+
+        } catch (Exception e) {
+            printResult("Test Payments In Flight Capped", false);
+        }
+    }
+
+    /* =============================
+       TEST 5: Finished Reservations Reject Moves
+    ============================== */
+
+    private void testFinishedReservationsRejectMoves() {
+        try {
+            CarRentalSystem system = new CarRentalSystem();
+            storeWithFleet(system, "FIN", 1);
+            Date startDate = new Date(System.currentTimeMillis() + DAY);
+            Reservation reservation = system.reserveVehicle(new User("John Doe", "john@email.com"), "FINREG0",
+                    startDate, new Date(startDate.getTime() + DAY), amount -> { });
+            system.startRental(reservation.getId());
+            system.completeRental(reservation.getId());
+
+            // the state machine is shared, so compare counts from before and after
+            ReservationStateMachine machine = ReservationStateMachine.DEFAULT;
+            long completedAgain = machine.getRejectionCount(ReservationStatus.COMPLETED, ReservationStatus.COMPLETED);
+            long cancelled = machine.getRejectionCount(ReservationStatus.COMPLETED, ReservationStatus.CANCELED);
+            long restarted = machine.getRejectionCount(ReservationStatus.COMPLETED, ReservationStatus.IN_PROGRESS);
+            system.completeRental(reservation.getId());
+            system.cancelReservation(reservation.getId());
+            system.startRental(reservation.getId());
+
+            boolean passed =
+                    system.getReservation(reservation.getId()) == null &&
+                    machine.getRejectionCount(ReservationStatus.COMPLETED, ReservationStatus.COMPLETED) == completedAgain + 1 &&
+                    machine.getRejectionCount(ReservationStatus.COMPLETED, ReservationStatus.CANCELED) == cancelled + 1 &&
+                    machine.getRejectionCount(ReservationStatus.COMPLETED, ReservationStatus.IN_PROGRESS) == restarted + 1 &&
+                    reservation.getVehicle().getRentalStatus() == VehicleStatus.AVAILABLE;
+
+            printResult("Test Finished Reservations Reject Moves", passed);
+
+        } catch (Exception e) {
+            printResult("Test Finished Reservations Reject Moves", false);
+        }
+    }
+
+    /* =============================
+       TEST 6: Booking Dates Priced Anywhere
+    ============================== */
+
+    // a booking across a month boundary pays each month's season per day; dates given back to
+    // front book the same days; a year past the precompiled calendar is still priced
+    private void testBookingDatesPricedAnywhere() {
+        try {
+            CarRentalSystem system = new CarRentalSystem();
+            CarStore store = storeWithFleet(system, "CAL", 3);
+            system.getPricingEngine().reload(new PricingRules().season(Month.JULY, 2.0));
+            User user = new User("John Doe", "john@email.com");
+
+            // June 29 - July 2: two June days at 50, two July days at 100
+            Date juneEnd = utcDate(2027, 6, 29);
+            Reservation across = system.reserveVehicle(user, "CALREG0", juneEnd, utcDate(2027, 7, 2), amount -> { });
+
+            Date julyTenth = utcDate(2027, 7, 10);
+            Date julyEighth = utcDate(2027, 7, 8);
+            Reservation reversed = system.reserveVehicle(user, "CALREG1", julyTenth, julyEighth, amount -> { });
+            boolean reversedBooked =
+                    !reversed.getVehicle().getBookingCalendar().isFree(utcDate(2027, 7, 9).getTime(), utcDate(2027, 7, 9).getTime()) &&
+                    store.getUtilization(julyTenth, julyEighth) == 1.0 / 3;
+
+            Reservation future = system.reserveVehicle(user, "CALREG2", utcDate(2042, 1, 1), utcDate(2042, 1, 2), amount -> { });
+
+            boolean passed =
+                    across.getTotalAmount() == 300.0 &&
+                    reversed.getTotalAmount() == 300.0 &&
+                    reversed.getStartDate().equals(julyEighth) &&
+                    reversedBooked &&
+                    future.getTotalAmount() == 100.0;
+
+            printResult("Test Booking Dates Priced Anywhere", passed);
+
+        } catch (Exception e) {
+            printResult("Test Booking Dates Priced Anywhere", false);
+        }
+    }
+
+    /* =============================
+       TEST 7: Booking Overlap Queries
+    ============================== */
+
+    // ranges are inclusive at both ends; releasing the longest booking narrows the slice a query
+    // scans; availability filters by class and drops booked cars; inverted ranges are refused
+    private void testBookingOverlapQueries() {
+        try {
+            Vehicle longHire = new Economy("OVQ0", "Toyota Corolla", "OVQREG0", 50.0, VehicleStatus.AVAILABLE);
+            Vehicle shortHire = new Economy("OVQ1", "Toyota Corolla", "OVQREG1", 50.0, VehicleStatus.AVAILABLE);
+            StoreBookingIndex index = new StoreBookingIndex();
+            index.add(longHire, 0, 100);
+            index.add(shortHire, 200, 210);
+            boolean overlaps =
+                    index.bookedVehicles(50, 60).equals(Set.of(longHire)) &&
+                    index.bookedVehicles(100, 200).equals(Set.of(longHire, shortHire)) &&
+                    index.bookedVehicles(101, 199).isEmpty() &&
+                    index.bookedVehicles(210, 300).equals(Set.of(shortHire)) &&
+                    index.maxDuration() == 100;
+            index.remove(longHire, 0);
+            boolean shrunk = index.maxDuration() == 10 && index.bookedVehicles(0, 150).isEmpty();
+
+            CarRentalSystem system = new CarRentalSystem();
+            CarStore store = storeWithFleet(system, "AVQ", 3);
+            Vehicle luxury = new Luxury("AVQL", "BMW 5", "AVQLUX", 120.0, VehicleStatus.AVAILABLE);
+            store.addVehicle(luxury);
+            Date startDate = new Date(System.currentTimeMillis() + DAY);
+            Date endDate = new Date(startDate.getTime() + 2 * DAY);
+            system.reserveVehicle(new User("John Doe", "john@email.com"), "AVQREG0", startDate, endDate, amount -> { });
+            Set<String> economy = new HashSet<>();
+            for (Vehicle vehicle : store.getAvailableVehicles(VehicleType.ECONOMY, startDate, endDate)) {
+                economy.add(vehicle.getRegistrationNumber());
+            }
+            boolean available =
+                    economy.equals(Set.of("AVQREG1", "AVQREG2")) &&
+                    store.getAvailableVehicles(VehicleType.LUXURY, startDate, endDate).equals(List.of(luxury)) &&
+                    store.getAvailableVehicles(startDate, endDate).size() == 3 &&
+                    store.getAvailableVehicles(new Date(endDate.getTime() + DAY), new Date(endDate.getTime() + 2 * DAY)).size() == 4;
+
+            boolean inverted = false;
+            try {
+                new BookingCalendar().book(10, 5);
+            } catch (IllegalArgumentException e) {
+                inverted = true;
+            }
+
+            boolean passed = overlaps && shrunk && available && inverted;
+
+            printResult("Test Booking Overlap Queries", passed);
+
+        } catch (Exception e) {
+            printResult("Test Booking Overlap Queries", false);
+        }
+    }
+
+    /* =============================
+       TEST 8: Ids Unique Across Threads
+    ============================== */
+
+    // 8 threads draw 50,000 ids each from one generator, crossing many block refills
+    private void testIdsUniqueAcrossThreads() {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            IdGenerator generator = new IdGenerator();
+            Set<Long> ids = ConcurrentHashMap.newKeySet();
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                workers.add(pool.submit(() -> {
+                    start.await();
+                    for (int n = 0; n < 50_000; n++) {
+                        ids.add(generator.nextId());
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+
+            boolean passed = ids.size() == 8 * 50_000;
+
+            printResult("Test Ids Unique Across Threads", passed);
+
+        } catch (Exception e) {
+            printResult("Test Ids Unique Across Threads", false);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
+
+// hand-rolled micro benchmarks (no build here to host JMH): warmup rounds, then measured rounds,
+// one CSV line per result with the mean and stddev across rounds. everything runs in one JVM, so
+// a row is only as good as that fork's JIT and GC luck. run with `java Main bench` and compare
+// the output between commits.
+class CarRentalBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final long ROUND_NANOS = 200_000_000L;
+
+    private static volatile long blackhole;
+
+    private interface Round {
+        long run();
+    }
+    // one thread's share of a parallel round: it folds its results into a local and hands that
+    // over once at the end through sink[0], so no two threads write the same cache line per op
+    private interface Worker {
+        long run(long[] sink);
+    }
+
+    public void runAll() {
+        System.out.println("# hand-rolled harness, not JMH: single fork, " + WARMUP_ROUNDS + " warmup and "
+                + MEASURED_ROUNDS + " measured rounds; error is the stddev across measured rounds");
+        System.out.println("benchmark,param,score,error,unit");
+        benchmarkIds();
+        benchmarkQuotes();
+        benchmarkFleetSearch();
+        benchmarkPayments();
+    }
+
+    // 5 ms gateway round trips: one payment at a time against up to 64 in flight
+    private void benchmarkPayments() {
+        StubPaymentGateway gateway = new StubPaymentGateway(5);
+        PaymentStrategy silent = amount -> { };
+        PaymentProcessor processor = new PaymentProcessor(gateway, 64);
+        report("payment", "serial", measure(() -> {
+            long ops = 0;
+            long deadline = System.nanoTime() + ROUND_NANOS;
+            while (System.nanoTime() < deadline) {
+                processor.processPayment(10.0, silent);
+                ops++;
+            }
+            return ops;
+        }));
+        report("payment", "async,maxInFlight=64", measure(() -> {
+            long ops = 0;
+            long deadline = System.nanoTime() + ROUND_NANOS;
+            while (System.nanoTime() < deadline) {
+                List<CompletableFuture<Boolean>> batch = new ArrayList<>();
+                for (int i = 0; i < 256; i++) {
+                    batch.add(processor.processPaymentAsync(UUID.randomUUID().toString(), 10.0, silent));
+                }
+                CompletableFuture.allOf(batch.toArray(CompletableFuture<?>[]::new)).join();
+                ops += batch.size();
+            }
+            return ops;
+        }));
+    }
+
+    // 10k stores spread over 10 cities, 5 vehicles each with every fifth one already booked
+    private void benchmarkFleetSearch() {
+        CarRentalSystem system = CarRentalSystem.getInstance();
+        long day = 24L * 60 * 60 * 1000;
+        Date start = new Date(System.currentTimeMillis() + 7 * day);
+        Date end = new Date(start.getTime() + 2 * day);
+        User user = new User("Bench", "bench@email.com");
+        for (int i = 0; i < 10_000; i++) {
+            CarStore store = new CarStore("City" + (i % 10), "Store" + i);
+            for (int j = 0; j < 5; j++) {
+                String reg = "S" + i + "V" + j;
+                Vehicle vehicle = j % 2 == 0
+                        ? new Economy(reg, "Toyota Corolla", reg, 50.0, VehicleStatus.AVAILABLE)
+                        : new Luxury(reg, "Mercedes-Benz S-Class", reg, 100.0, VehicleStatus.AVAILABLE);
+                store.addVehicle(vehicle);
+                if (j == 4) store.addBooking(new Reservation(user, vehicle, start, end));
+            }
+            system.addStore(store);
+        }
+        FleetSearchCriteria all = new FleetSearchCriteria().dates(start, end);
+        FleetSearchCriteria narrow = new FleetSearchCriteria().dates(start, end).vehicleType(VehicleType.LUXURY).location("City3");
+        report("fleetSearch", "stores=10000,filter=none", measure(() -> searches(system, all)));
+        report("fleetSearch", "stores=10000,filter=type+location", measure(() -> searches(system, narrow)));
+    }
+
+    private long searches(CarRentalSystem system, FleetSearchCriteria criteria) {
+        long ops = 0;
+        long deadline = System.nanoTime() + ROUND_NANOS;
+        while (System.nanoTime() < deadline) {
+            blackhole += system.searchFleet(criteria).getTotalHits();
+            ops++;
+        }
+        return ops;
+    }
+
+    private void benchmarkQuotes() {
+        CarStore store = new CarStore("Bench", "Bench Rentals");
+        Vehicle vehicle = new Economy("BENCH1", "Toyota Corolla", "BENCHREG1", 50.0, VehicleStatus.AVAILABLE);
+        PricingEngine engine = new PricingEngine(new PricingRules()
+                .season(Month.JULY, 1.4)
+                .store(store, 1.1)
+                .vehicleClass(VehicleType.ECONOMY, 0.9)
+                .demand(0.8, 1.5));
+        long start = System.currentTimeMillis();
+        long end = start + 3L * 24 * 60 * 60 * 1000;
+        report("pricingQuote", "threads=1", measure(() -> {
+            long ops = 0;
+            long deadline = System.nanoTime() + ROUND_NANOS;
+            while (System.nanoTime() < deadline) {
+                blackhole += (long) engine.quote(vehicle, store, start, end, (ops & 15) / 16.0);
+                ops++;
+            }
+            return ops;
+        }));
+    }
+
+    // the old ids (a fresh Random per call) against IdGenerator, at the same thread counts
+    private void benchmarkIds() {
+        IdGenerator generator = new IdGenerator();
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= Math.max(4, cores); threads *= 2) {
+            int workers = threads;
+            report("randomId", "threads=" + threads, measure(() -> parallel(workers, sink -> {
+                long ops = 0;
+                long local = 0;
+                long deadline = System.nanoTime() + ROUND_NANOS;
+                while (System.nanoTime() < deadline) {
+                    local += new Random().nextInt(1000);
+                    ops++;
+                }
+                sink[0] = local;
+                return ops;
+            })));
+            report("idGenerator", "threads=" + threads, measure(() -> parallel(workers, sink -> {
+                long ops = 0;
+                long local = 0;
+                long deadline = System.nanoTime() + ROUND_NANOS;
+                while (System.nanoTime() < deadline) {
+                    local += generator.nextId();
+                    ops++;
+                }
+                sink[0] = local;
+                return ops;
+            })));
+        }
+    }
+
+    // runs the worker on that many threads and returns the ops they did between them; each
+    // worker's sink is combined into blackhole after the join
+    private long parallel(int threads, Worker round) {
+        long[] ops = new long[threads];
+        long[][] sinks = new long[threads][];
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int slot = i;
+            Thread worker = new Thread(() -> {
+                long[] sink = new long[1];
+                ops[slot] = round.run(sink);
+                sinks[slot] = sink;
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        long total = 0;
+        long combined = 0;
+        for (int i = 0; i < threads; i++) {
+            try {
+                workers.get(i).join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            total += ops[i];
+            if (sinks[i] != null) combined += sinks[i][0];
+        }
+        blackhole = combined;
+        return total;
+    }
+
+    // ops per second of each measured round
+    private double[] measure(Round round) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round.run();
+        }
+        double[] rates = new double[MEASURED_ROUNDS];
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            long start = System.nanoTime();
+            long ops = round.run();
+            rates[i] = ops / ((System.nanoTime() - start) / 1e9);
+        }
+        return rates;
+    }
+
+    // mean and sample stddev of the measured rounds
+    private void report(String benchmark, String param, double[] opsPerSecond) {
+        double mean = 0;
+        for (double value : opsPerSecond) {
+            mean += value;
+        }
+        mean /= opsPerSecond.length;
+        double squares = 0;
+        for (double value : opsPerSecond) {
+            squares += (value - mean) * (value - mean);
+        }
+        double stddev = opsPerSecond.length > 1 ? Math.sqrt(squares / (opsPerSecond.length - 1)) : 0;
+        System.out.println(benchmark + "," + param + "," + Math.round(mean) + "," + Math.round(stddev) + ",ops/s");
     }
 }
 
@@ -392,6 +2270,14 @@ public class Main {
     // }
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("bench")) {
+            new CarRentalBenchmark().runAll();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("test")) {
+            new CarRentalTester().runAllTests();
+            return;
+        }
        
         System.out.println("===== Car Rental System Test =====");
 
@@ -516,6 +2402,38 @@ public class Main {
         carRentalSystem.removeStore(store2);
         System.out.println("Store2 removed from system.");
 
+        // ---------------------------
+        // 13. Availability By Date Range
+        // ---------------------------
+        Date nextMonthStart = new Date(startDate.getTime() + (30L * 24 * 60 * 60 * 1000));
+        Date nextMonthEnd = new Date(nextMonthStart.getTime() + (2L * 24 * 60 * 60 * 1000));
+        System.out.println("\nAvailable at store1 for the booked dates:");
+        for (Vehicle vehicle : store1.getAvailableVehicles(startDate, endDate)) {
+            System.out.println(" - " + vehicle.getRegistrationNumber());
+        }
+        System.out.println("Available at store1 next month:");
+        for (Vehicle vehicle : store1.getAvailableVehicles(nextMonthStart, nextMonthEnd)) {
+            System.out.println(" - " + vehicle.getRegistrationNumber());
+        }
+
+        // ---------------------------
+        // 14. Fleet Search
+        // ---------------------------
+        FleetSearchPage results = carRentalSystem.searchFleet(new FleetSearchCriteria().dates(nextMonthStart, nextMonthEnd));
+        System.out.println("\nFleet search next month (" + results.getTotalHits() + " hits):");
+        for (FleetSearchHit hit : results.getHits()) {
+            System.out.println(" - " + hit.getVehicle().getRegistrationNumber() + " at " + hit.getStore().getName() + " $" + hit.getPrice());
+        }
+
+        // ---------------------------
+        // 15. Reservation State Churn
+        // ---------------------------
+        carRentalSystem.completeRental(reservation1.getId()); // already completed, rejected
+        System.out.println("\nReservation transitions:");
+        for (String line : ReservationStateMachine.DEFAULT.report()) {
+            System.out.println(" - " + line);
+        }
+
         System.out.println("\n===== Test Execution Completed ====="); 
         }
 }
\ No newline at end of file
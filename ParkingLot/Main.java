@@ -1,9 +1,62 @@
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+import java.util.zip.CRC32;
 
 enum VehicleType {
     CAR,
@@ -12,6 +65,8 @@ enum VehicleType {
 }
 enum Status {
     ACTIVE,
+    // an exit has claimed the ticket and its payment is running
+    PAYING,
     PAID
 }
 
@@ -54,6 +109,14 @@ class Truck extends Vehicle {
 
 interface VehicleFactory {
     Vehicle createVehicle(String licensePlate);
+
+    static VehicleFactory forType(VehicleType type) {
+        return switch (type) {
+            case CAR -> new CarFactory();
+            case MOTORCYCLE -> new MotorcycleFactory();
+            case TRUCK -> new TruckFactory();
+        };
+    }
 }
 class CarFactory implements VehicleFactory {
     @Override
@@ -73,19 +136,196 @@ class TruckFactory implements VehicleFactory {
         return new Truck(licensePlate);
     }
 }
+// where gate, spot and payment events go; keeps console I/O off the entry/exit path
+interface ParkingEventSink {
+    void publish(String event);
+}
+class NoOpEventSink implements ParkingEventSink {
+    @Override
+    public void publish(String event) {
+    }
+}
+class ConsoleEventSink implements ParkingEventSink {
+    private final PrintStream out;
+
+    public ConsoleEventSink() {
+        this(System.out);
+    }
+    public ConsoleEventSink(PrintStream out) {
+        this.out = out;
+    }
+    @Override
+    public void publish(String event) {
+        out.println(event);
+    }
+}
+// callers only enqueue into a bounded queue; one background thread does the printing. the queue
+// is an ArrayBlockingQueue, so producers still take its lock briefly, but no gate waits on console
+// I/O. when the queue is full the event is dropped and counted, and the writer reports how many
+// were lost once it catches up. close(), also run from a shutdown hook, writes out whatever is
+// still queued, so a JVM exit does not lose events. not the default sink: ParkingEvents prints
+// synchronously unless this one is installed.
+class AsyncEventSink implements ParkingEventSink, AutoCloseable {
+    private final BlockingQueue<String> buffer;
+    private final ParkingEventSink target;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final Thread writer;
+    private final Thread shutdownHook;
+    private volatile boolean closed;
+    private long reportedDrops; // writer thread, then close() after joining it
+
+    public AsyncEventSink(int capacity, ParkingEventSink target) {
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.target = target;
+        this.writer = new Thread(this::drain, "parking-event-writer");
+        writer.setDaemon(true);
+        writer.start();
+        this.shutdownHook = new Thread(this::close, "parking-event-flush");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+    @Override
+    public void publish(String event) {
+        if (closed) {
+            // nothing drains the queue any more
+            target.publish(event);
+        } else if (buffer.offer(event)) {
+            published.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+    private void drain() {
+        try {
+            while (!closed || !buffer.isEmpty()) {
+                String event = buffer.poll(10, TimeUnit.MILLISECONDS);
+                if (event != null) write(event);
+                else reportDrops();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    private void write(String event) {
+        target.publish(event);
+        written.incrementAndGet();
+    }
+    private void reportDrops() {
+        long lost = dropped.get() - reportedDrops;
+        if (lost == 0) return;
+        reportedDrops += lost;
+        target.publish("Event sink full: " + lost + " events dropped.");
+    }
+    // waits until everything published so far has been written
+    public void flush() throws InterruptedException {
+        long pending = published.get();
+        while (written.get() < pending) {
+            Thread.sleep(1);
+        }
+    }
+    // stops the writer after it has written everything queued; later events go straight to the target
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (String event = buffer.poll(); event != null; event = buffer.poll()) {
+            write(event);
+        }
+        reportDrops();
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // the JVM is already shutting down and will run the hook, which returns at once
+            }
+        }
+    }
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
+class ParkingEvents {
+    private static volatile ParkingEventSink sink = new ConsoleEventSink();
+
+    private ParkingEvents() {
+    }
+    public static void publish(String event) {
+        sink.publish(event);
+    }
+    public static ParkingEventSink getSink() {
+        return sink;
+    }
+    public static void setSink(ParkingEventSink newSink) {
+        sink = newSink;
+    }
+    public static void flush() {
+        if (sink instanceof AsyncEventSink) {
+            try {
+                ((AsyncEventSink) sink).flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
+
 interface PaymentStrategy {
     void pay(double amount);
+
+    // settles a whole batch in one submission; strategies override this when they can do better than one call each.
+    // returns which amounts were charged, so a failure partway through never hides the ones already
+    // taken. throwing means none of them were.
+    default boolean[] payAll(double[] amounts) {
+        boolean[] charged = new boolean[amounts.length];
+        for (int i = 0; i < amounts.length; i++) {
+            try {
+                pay(amounts[i]);
+                charged[i] = true;
+            } catch (RuntimeException e) {
+                charged[i] = false;
+            }
+        }
+        return charged;
+    }
 }
 class CreditCardPayment implements PaymentStrategy {
     @Override
     public void pay(double amount) {
-        System.out.println("Paid " + amount + " using Credit Card.");
+        ParkingEvents.publish("Paid " + amount + " using Credit Card.");
+    }
+    @Override
+    public boolean[] payAll(double[] amounts) {
+        double total = 0;
+        for (double amount : amounts) {
+            total += amount;
+        }
+        ParkingEvents.publish("Paid " + total + " for " + amounts.length + " tickets using Credit Card.");
+        boolean[] charged = new boolean[amounts.length];
+        Arrays.fill(charged, true);
+        return charged;
     }
 }
 class CashPayment implements PaymentStrategy {
     @Override
     public void pay(double amount) {
-        System.out.println("Paid " + amount + " using Cash.");
+        ParkingEvents.publish("Paid " + amount + " using Cash.");
+    }
+    @Override
+    public boolean[] payAll(double[] amounts) {
+        double total = 0;
+        for (double amount : amounts) {
+            total += amount;
+        }
+        ParkingEvents.publish("Paid " + total + " for " + amounts.length + " tickets using Cash.");
+        boolean[] charged = new boolean[amounts.length];
+        Arrays.fill(charged, true);
+        return charged;
     }
 }
 interface PricingStrategy {
@@ -120,6 +360,39 @@ class PremiumRateStrategy implements PricingStrategy {
     }
 }
 
+// a pricing strategy evaluated once per (vehicle type, billable hours) and kept as a flat array,
+// so exit-time pricing is an index lookup; stays beyond the table fall back to the source strategy
+class PricingTable implements PricingStrategy {
+    private final PricingStrategy source;
+    private final int maxHours;
+    private final double[][] prices;
+
+    private PricingTable(PricingStrategy source, int maxHours, double[][] prices) {
+        this.source = source;
+        this.maxHours = maxHours;
+        this.prices = prices;
+    }
+
+    public static PricingTable compile(PricingStrategy source, int maxHours) {
+        double[][] prices = new double[VehicleType.values().length][maxHours + 1];
+        for (VehicleType type : VehicleType.values()) {
+            Vehicle sample = VehicleFactory.forType(type).createVehicle("PRICING-" + type);
+            for (int hours = 0; hours <= maxHours; hours++) {
+                prices[type.ordinal()][hours] = source.calculatePrice(sample, hours);
+            }
+        }
+        return new PricingTable(source, maxHours, prices);
+    }
+
+    @Override
+    public double calculatePrice(Vehicle vehicle, int hours) {
+        if (hours >= 0 && hours <= maxHours) {
+            return prices[vehicle.getVehicleType().ordinal()][hours];
+        }
+        return source.calculatePrice(vehicle, hours);
+    }
+}
+
 class EntryGate {
     // public ParkingTicket generateTicket(Vehicle vehicle) {
     //     openGate();
@@ -127,8 +400,20 @@ class EntryGate {
     //     vehicle.displayDetails();
     //     return parkingTicket; 
     // }
+    // floor this gate allocates from first; other floors are only tried when it is full
+    private final int homeFloor;
+
+    public EntryGate() {
+        this(0);
+    }
+    public EntryGate(int homeFloor) {
+        this.homeFloor = homeFloor;
+    }
+    public int getHomeFloor() {
+        return homeFloor;
+    }
     public void openGate(){
-        System.out.println("Entry gate opened.");
+        ParkingEvents.publish("Entry gate opened.");
     }
 }
 class ExitGate {
@@ -144,370 +429,3690 @@ class ExitGate {
     //     return parkingTicket;
     // }
     public void openGate() {
-        System.out.println("Exit gate opened.");
+        ParkingEvents.publish("Exit gate opened.");
     }
 }
 
 
 
 class ParkingSpot {
-    private Vehicle parkedVehicle;
+    // null means free; gates claim the spot with a CAS instead of a monitor. a field updater
+    // rather than an AtomicReference, so a spot is one object
+    private static final AtomicReferenceFieldUpdater<ParkingSpot, Vehicle> PARKED_VEHICLE =
+            AtomicReferenceFieldUpdater.newUpdater(ParkingSpot.class, Vehicle.class, "parkedVehicle");
+    private volatile Vehicle parkedVehicle;
     private final VehicleType spotType;
+    private ParkingFloor floor;
+    private int index;
 
     public ParkingSpot(VehicleType spotType) {
         this.spotType = spotType;
     }
     public boolean isAvailable() {
-        return parkedVehicle == null; 
+        return currentVehicle() == null; 
     }
-    public synchronized boolean assignVehicle(Vehicle vehicle) {
-        if(parkedVehicle != null || vehicle.getVehicleType() != this.spotType) {
+    // where the parked vehicle is kept; compact spots keep it in their floor's table instead
+    Vehicle currentVehicle() {
+        return parkedVehicle;
+    }
+    boolean swapVehicle(Vehicle expected, Vehicle update) {
+        return PARKED_VEHICLE.compareAndSet(this, expected, update);
+    }
+    public boolean assignVehicle(Vehicle vehicle) {
+        if(vehicle.getVehicleType() != this.spotType || !swapVehicle(null, vehicle)) {
             return false;
         }
-        this.parkedVehicle = vehicle;
-        System.out.println("Vehicle assigned to parking spot.");
+        if(floor != null) {
+            floor.recordOccupied(spotType, 1);
+        }
+        ParkingEvents.publish("Vehicle assigned to parking spot.");
         return true;
     }
-    public synchronized  void removeVehicle() {
-        this.parkedVehicle = null;
-        System.out.println("Vehicle removed from parking spot.");
+    // false when the spot was already empty, so callers release it to the free index only once
+    public boolean removeVehicle() {
+        Vehicle vehicle = currentVehicle();
+        return removed(vehicle != null && swapVehicle(vehicle, null));
+    }
+    // removes only this vehicle; a stale ticket cannot evict whoever parked here after it
+    public boolean removeVehicle(Vehicle vehicle) {
+        return removed(swapVehicle(vehicle, null));
+    }
+    private boolean removed(boolean removed) {
+        if(!removed) {
+            return false;
+        }
+        if(floor != null) {
+            floor.recordOccupied(spotType, -1);
+        }
+        ParkingEvents.publish("Vehicle removed from parking spot.");
+        return true;
     }
     public Vehicle getParkedVehicle() {
-        return parkedVehicle; 
+        return currentVehicle(); 
     }
     public  VehicleType getSpotType() {
         return spotType;
     }
+    public ParkingFloor getFloor() {
+        return floor;
+    }
+    void setFloor(ParkingFloor floor) {
+        this.floor = floor;
+    }
+    // position of the spot on its floor
+    public int getIndex() {
+        return index;
+    }
+    void setIndex(int index) {
+        this.index = index;
+    }
 }
 class ParkingFloor {
     List<ParkingSpot> parkingSpots  = new ArrayList<>();
+    // this floor's shard of free spots, so gates homed on different floors never contend
+    private final Map<VehicleType, Queue<ParkingSpot>> freeSpots = new EnumMap<>(VehicleType.class);
+    // striped counters indexed by VehicleType ordinal, so signage never walks the spots
+    private final LongAdder[] occupied = new LongAdder[VehicleType.values().length];
+    private final LongAdder[] capacity = new LongAdder[VehicleType.values().length];
+    // claims on this floor that lost a race to another gate for the same free spot
+    private final LongAdder claimConflicts = new LongAdder();
+    private int level;
+
+    public ParkingFloor() {
+        for (VehicleType type : VehicleType.values()) {
+            freeSpots.put(type, new ConcurrentLinkedQueue<>());
+            occupied[type.ordinal()] = new LongAdder();
+            capacity[type.ordinal()] = new LongAdder();
+        }
+    }
 
     public synchronized void addParkingSpots(List<ParkingSpot> parkingSpotsArray) {
-        parkingSpots.addAll(parkingSpotsArray);
+        for (ParkingSpot spot : parkingSpotsArray) {
+            spot.setIndex(parkingSpots.size());
+            parkingSpots.add(spot);
+            spot.setFloor(this);
+            capacity[spot.getSpotType().ordinal()].increment();
+            if (spot.isAvailable()) {
+                releaseSpot(spot);
+            } else {
+                recordOccupied(spot.getSpotType(), 1);
+            }
+        }
     }
     public List<ParkingSpot> getSpots() {
         return parkingSpots;
     }
-}
-class ParkingLot {
-    List<ParkingFloor> parkingFloors =new ArrayList<>();
-    
-    private ParkingLot(List<ParkingFloor> floors) {
-        this.parkingFloors = floors;
+    public ParkingSpot pollAvailableSpot(VehicleType type) {
+        return freeSpots.get(type).poll();
     }
-
-    public void addParkingFloor(List<ParkingFloor> parkingFloorsArray) {
-        parkingFloors.addAll(parkingFloorsArray);
+    public void releaseSpot(ParkingSpot spot) {
+        freeSpots.get(spot.getSpotType()).offer(spot);
     }
-
-    public synchronized ParkingSpot findAvailableSpot(VehicleType type) {
-        for (ParkingFloor floor : parkingFloors) {
-            for (ParkingSpot spot : floor.getSpots()) {
-                if (spot.getSpotType() == type && spot.isAvailable()) {
-                    return spot;
-                }
+    // journal replay: parks the vehicle in the given spot without going through the free index
+    public ParkingSpot restoreSpot(int index, Vehicle vehicle) {
+        ParkingSpot spot = parkingSpots.get(index);
+        return spot.assignVehicle(vehicle) ? spot : null;
+    }
+    // journal replay: drops spots that restoreSpot filled from the free index in one pass
+    public void rebuildFreeIndex() {
+        for (Queue<ParkingSpot> queue : freeSpots.values()) {
+            queue.clear();
+        }
+        for (ParkingSpot spot : parkingSpots) {
+            if (spot.isAvailable()) {
+                releaseSpot(spot);
             }
         }
-        return null;
     }
-
-    public static Builder build() {
-        return new Builder();
+    public int getLevel() {
+        return level;
     }
+    void setLevel(int level) {
+        this.level = level;
+    }
+    void recordCapacity(VehicleType type, int spots) {
+        capacity[type.ordinal()].add(spots);
+    }
+    void recordOccupied(VehicleType type, int delta) {
+        occupied[type.ordinal()].add(delta);
+    }
+    public long getOccupied(VehicleType type) {
+        return occupied[type.ordinal()].sum();
+    }
+    public long getCapacity(VehicleType type) {
+        return capacity[type.ordinal()].sum();
+    }
+    void recordClaimConflict() {
+        claimConflicts.increment();
+    }
+    public long getClaimConflicts() {
+        return claimConflicts.sum();
+    }
+}
+// struct-of-arrays floor for very large garages: a byte per spot for its type, a bit per spot
+// for occupancy, the parked vehicle and a claim generation per spot in flat arrays, and no
+// ParkingSpot object until a vehicle actually parks. spots of one type are laid out
+// contiguously, so a free-spot search is a scan over a few packed words.
+class CompactParkingFloor extends ParkingFloor {
+    private final byte[] spotTypes;
+    private final AtomicLongArray occupiedBits;
+    // vehicle parked at each spot index, null while free
+    private final AtomicReferenceArray<Vehicle> vehicles;
+    // bumped each time a spot is released, so a view handed out for an earlier claim goes stale
+    private final AtomicIntegerArray generations;
+    private final int[] typeStart = new int[VehicleType.values().length];
+    private final int[] typeEnd = new int[VehicleType.values().length];
+    // word to resume scanning from, per type, so repeated allocations don't rescan full words
+    private final AtomicInteger[] scanHint = new AtomicInteger[VehicleType.values().length];
 
-    public static class Builder {
-        private final List<ParkingFloor> floors = new ArrayList<>();
+    public CompactParkingFloor(int carSpots, int bikeSpots, int truckSpots) {
+        int total = carSpots + bikeSpots + truckSpots;
+        this.spotTypes = new byte[total];
+        this.occupiedBits = new AtomicLongArray((total + 63) >>> 6);
+        this.vehicles = new AtomicReferenceArray<>(total);
+        this.generations = new AtomicIntegerArray(total);
+        int next = 0;
+        next = layout(VehicleType.CAR, next, carSpots);
+        next = layout(VehicleType.MOTORCYCLE, next, bikeSpots);
+        layout(VehicleType.TRUCK, next, truckSpots);
+    }
 
-        public Builder addFloor(int carSpots,int bikeSpots, int truckSpots){
-            ParkingFloor floor = new ParkingFloor();
-            List<ParkingSpot> spots = new ArrayList<>();
+    private int layout(VehicleType type, int start, int count) {
+        int t = type.ordinal();
+        typeStart[t] = start;
+        typeEnd[t] = start + count;
+        scanHint[t] = new AtomicInteger(start >>> 6);
+        for (int i = start; i < start + count; i++) {
+            spotTypes[i] = (byte) t;
+        }
+        recordCapacity(type, count);
+        return start + count;
+    }
 
-            for(int i=0;i<carSpots;i++) {
-                spots.add(new ParkingSpot(VehicleType.CAR));
+    @Override
+    public ParkingSpot pollAvailableSpot(VehicleType type) {
+        int t = type.ordinal();
+        int start = typeStart[t];
+        int end = typeEnd[t];
+        if (start == end) {
+            return null;
+        }
+        int firstWord = start >>> 6;
+        int lastWord = (end - 1) >>> 6;
+        int words = lastWord - firstWord + 1;
+        int hint = scanHint[t].get();
+        for (int n = 0; n < words; n++) {
+            int word = firstWord + (hint - firstWord + n) % words;
+            int index = claimInWord(word, start, end);
+            if (index >= 0) {
+                scanHint[t].set(word);
+                return new CompactParkingSpot(this, index, type, generations.get(index));
             }
-            for(int i=0;i<bikeSpots;i++) {
-                spots.add(new ParkingSpot(VehicleType.MOTORCYCLE));
+        }
+        return null;
+    }
+
+    private int claimInWord(int word, int start, int end) {
+        int base = word << 6;
+        long mask = -1L;
+        if (start > base) {
+            mask &= -1L << (start - base);
+        }
+        if (end < base + 64) {
+            mask &= (1L << (end - base)) - 1;
+        }
+        while (true) {
+            long bits = occupiedBits.get(word);
+            long free = ~bits & mask;
+            if (free == 0) {
+                return -1;
             }
-            for(int i=0;i<truckSpots;i++) {
-                spots.add(new ParkingSpot(VehicleType.TRUCK));
+            long bit = Long.lowestOneBit(free);
+            if (occupiedBits.compareAndSet(word, bits, bits | bit)) {
+                return base + Long.numberOfTrailingZeros(bit);
             }
-            floor.addParkingSpots(spots);
-            floors.add(floor);
-            return this;
-        }
-        public ParkingLot build() {
-            return new ParkingLot(floors);
+            recordClaimConflict();
         }
     }
-}
 
-class ParkingTicket {
-    private static final AtomicInteger ticketCounter = new AtomicInteger(1);
-    private final int ticketId;
-    private final Vehicle vehicle;
-    private final LocalDateTime entryTime;
-    private LocalDateTime exitTime;
-    private final ParkingSpot spot;
-    private Status status;
+    // each claim is released at most once, and only once its vehicle is gone; a stale view
+    // released again must not free the slot out from under the vehicle that claimed it since
+    @Override
+    public void releaseSpot(ParkingSpot spot) {
+        int index = spot.getIndex();
+        int generation = ((CompactParkingSpot) spot).getGeneration();
+        if (vehicles.get(index) != null || !generations.compareAndSet(index, generation, generation + 1)) {
+            return;
+        }
+        long bit = 1L << (index & 63);
+        occupiedBits.getAndUpdate(index >>> 6, bits -> bits & ~bit);
+    }
 
-    public ParkingTicket(Vehicle vehicle, ParkingSpot spot) {
-        this.ticketId = ticketCounter.getAndIncrement();
-        this.vehicle = vehicle;
-        this.entryTime = LocalDateTime.now();
-        this.status = Status.ACTIVE;
-        this.spot = spot;
+    @Override
+    public ParkingSpot restoreSpot(int index, Vehicle vehicle) {
+        long bit = 1L << (index & 63);
+        long before = occupiedBits.getAndUpdate(index >>> 6, bits -> bits | bit);
+        if ((before & bit) != 0) {
+            return null;
+        }
+        ParkingSpot spot = new CompactParkingSpot(this, index, getSpotType(index), generations.get(index));
+        spot.assignVehicle(vehicle);
+        return spot;
     }
-    public void closeTicket() {
-        this.exitTime = LocalDateTime.now();
+
+    // a view sees the table only while its claim is current; a stale one reads as empty and
+    // cannot park or remove anyone
+    Vehicle vehicleAt(int index, int generation) {
+        return generations.get(index) == generation ? vehicles.get(index) : null;
     }
-    public int getParkingDuration() {
-        if (exitTime == null) {
-            throw new IllegalStateException("Exit time not recorded.");
-        }
-        long minutes = Duration.between(entryTime, exitTime).toMinutes();
-        int hours = (int) Math.ceil(minutes / 60.0);
-        return Math.max(hours, 1);
+    boolean swapVehicle(int index, int generation, Vehicle expected, Vehicle update) {
+        return generations.get(index) == generation && vehicles.compareAndSet(index, expected, update);
     }
-    public double calculateAmount(PricingStrategy strategy) {
-        int hours = getParkingDuration();
-        return strategy.calculatePrice(vehicle,hours);
+    @Override
+    public void rebuildFreeIndex() {
     }
-    public void markPaid() {
-        this.status = Status.PAID;
+
+    public VehicleType getSpotType(int index) {
+        return VehicleType.values()[spotTypes[index]];
     }
-    public int getTicketId() {
-        return ticketId;
+    public boolean isOccupied(int index) {
+        return (occupiedBits.get(index >>> 6) & (1L << (index & 63))) != 0;
     }
-    public ParkingSpot getSpot() {
-        return spot;
+    // the vehicle parked at this spot, or null
+    public Vehicle getVehicle(int index) {
+        return vehicles.get(index);
     }
-    public Status getStatus() {
-        return status;
+    public int getSpotCount() {
+        return spotTypes.length;
     }
-    
 }
+// transient view of one slot in a CompactParkingFloor, created when the slot is claimed. it
+// holds no state of its own: the vehicle lives in the floor's table, valid for the claim
+// generation the view was made for
+class CompactParkingSpot extends ParkingSpot {
+    private final int generation;
 
-class ParkingService { 
-    private final ParkingLot parkingLot;
-    private final EntryGate entryGate;
-    private final ExitGate exitGate;
-
-    public ParkingService(ParkingLot parkingLot, EntryGate entryGate, ExitGate exitGate) {
-        this.parkingLot = parkingLot;
-        this.entryGate = entryGate;
-        this.exitGate = exitGate;
+    CompactParkingSpot(CompactParkingFloor floor, int index, VehicleType spotType, int generation) {
+        super(spotType);
+        setIndex(index);
+        setFloor(floor);
+        this.generation = generation;
     }
-    public ParkingTicket enter(Vehicle vehicle){
-        ParkingSpot spot = parkingLot.findAvailableSpot(vehicle.getVehicleType());
-        if(spot == null || !spot.assignVehicle(vehicle)) {
-            throw new RuntimeException("No available spot.");
-        }
-        entryGate.openGate();
-        ParkingTicket ticket = new ParkingTicket(vehicle, spot);
-        return ticket;
+    int getGeneration() {
+        return generation;
     }
-    public void exit(ParkingTicket ticket,PricingStrategy pricingStrategy,
-    PaymentStrategy paymentStrategy) {
-        ticket.closeTicket();
-        double amount = ticket.calculateAmount(pricingStrategy);
-        paymentStrategy.pay(amount);
-        ticket.getSpot().removeVehicle();
-        ticket.markPaid();  
-        exitGate.openGate();
+    @Override
+    Vehicle currentVehicle() {
+        return ((CompactParkingFloor) getFloor()).vehicleAt(getIndex(), generation);
+    }
+    @Override
+    boolean swapVehicle(Vehicle expected, Vehicle update) {
+        return ((CompactParkingFloor) getFloor()).swapVehicle(getIndex(), generation, expected, update);
     }
-
 }
 
-// public class Main {
-//     public static void main(String[] args) {
-//         // ParkingLot parkingLot = new ParkingLot();
-//         // ParkingFloor floor1 = new ParkingFloor();
-//         // ParkingFloor[] floors = new ParkingFloor[1];
-//         // floors[0] = floor1;
-//         // ParkingSpot[] spots = new ParkingSpot[4];
-//         // spots[0] = new ParkingSpot(VehicleType.CAR);
-//         // spots[1] = new ParkingSpot(VehicleType.MOTORCYCLE);
-//         // spots[2] = new ParkingSpot(VehicleType.TRUCK);
-//         // spots[3] = new ParkingSpot(VehicleType.CAR);
-//         // floor1.addParkingSpots(spots);
-//         // parkingLot.addParkingFloor(floors);
-
-//         ParkingLot parkingLot = ParkingLot.build()
-//         .addFloor(2, 1, 1)   // Floor 1
-//         .addFloor(3, 2, 0)   // Floor 2
-//         .build();
+// free spots ordered by walking distance from each entry gate. every gate keeps one heap per
+// vehicle type; a spot sits in all of them while free. claiming bumps the spot's version with a
+// CAS, which makes its entries in the other gates' heaps stale, and those are skipped when they
+// surface. release bumps the version again and pushes a fresh entry to every gate.
+class NearestSpotIndex {
+    private static final class Entry {
+        final int spotId;
+        final int distance;
+        final int version;
 
+        Entry(int spotId, int distance, int version) {
+            this.spotId = spotId;
+            this.distance = distance;
+            this.version = version;
+        }
+    }
 
-//         ParkingService service = new ParkingService(parkingLot,new EntryGate(),new ExitGate());
+    private final List<ParkingSpot> spots = new ArrayList<>();
+    private final Map<ParkingSpot, Integer> spotIds = new IdentityHashMap<>();
+    // even while the spot is free, odd while it is claimed
+    private final AtomicIntegerArray versions;
+    private final Map<EntryGate, int[]> distances = new IdentityHashMap<>();
+    private final Map<EntryGate, Map<VehicleType, PriorityBlockingQueue<Entry>>> heaps = new IdentityHashMap<>();
+    private final int[] spotsPerType = new int[VehicleType.values().length];
+    private final EntryGate defaultGate;
 
-//         VehicleFactory carFactory = new CarFactory();
-//         Vehicle car = carFactory.createVehicle("MH12AB1234");
-//         ParkingTicket ticket = service.enter(car);
-//         try{
-//             Thread.sleep(9000); 
-//         }catch(InterruptedException e){
-//             e.printStackTrace();
-//         } 
-//         service.exit(ticket,new HourlyRateStrategy(),new CashPayment());
+    NearestSpotIndex(List<ParkingFloor> floors, Map<EntryGate, ToIntFunction<ParkingSpot>> gateDistances) {
+        for (ParkingFloor floor : floors) {
+            if (floor instanceof CompactParkingFloor) {
+                throw new IllegalStateException("Nearest-gate allocation needs per-spot objects; compact floors are not supported.");
+            }
+            for (ParkingSpot spot : floor.getSpots()) {
+                spotIds.put(spot, spots.size());
+                spots.add(spot);
+                spotsPerType[spot.getSpotType().ordinal()]++;
+            }
+        }
+        this.versions = new AtomicIntegerArray(spots.size());
+        for (Map.Entry<EntryGate, ToIntFunction<ParkingSpot>> gate : gateDistances.entrySet()) {
+            int[] fromGate = new int[spots.size()];
+            for (int id = 0; id < spots.size(); id++) {
+                fromGate[id] = gate.getValue().applyAsInt(spots.get(id));
+            }
+            distances.put(gate.getKey(), fromGate);
+            Map<VehicleType, PriorityBlockingQueue<Entry>> byType = new EnumMap<>(VehicleType.class);
+            for (VehicleType type : VehicleType.values()) {
+                byType.put(type, new PriorityBlockingQueue<>(Math.max(1, spotsPerType[type.ordinal()]),
+                        Comparator.comparingInt((Entry e) -> e.distance).thenComparingInt(e -> e.spotId)));
+            }
+            heaps.put(gate.getKey(), byType);
+        }
+        this.defaultGate = gateDistances.keySet().iterator().next();
+        rebuild();
+    }
 
+    // gates that were not registered allocate as if they were the first registered gate
+    public ParkingSpot claim(VehicleType type, EntryGate gate) {
+        Map<VehicleType, PriorityBlockingQueue<Entry>> byType = heaps.get(gate);
+        if (byType == null) {
+            byType = heaps.get(defaultGate);
+        }
+        PriorityBlockingQueue<Entry> heap = byType.get(type);
+        Entry entry;
+        while ((entry = heap.poll()) != null) {
+            // a stale entry is routine bookkeeping; only a CAS lost on a current one is a race
+            if (versions.get(entry.spotId) != entry.version) {
+                continue;
+            }
+            if (versions.compareAndSet(entry.spotId, entry.version, entry.version + 1)) {
+                return spots.get(entry.spotId);
+            }
+            spots.get(entry.spotId).getFloor().recordClaimConflict();
+        }
+        return null;
+    }
 
+    public void release(ParkingSpot spot) {
+        int id = spotIds.get(spot);
+        int version = versions.incrementAndGet(id);
+        VehicleType type = spot.getSpotType();
+        for (Map.Entry<EntryGate, Map<VehicleType, PriorityBlockingQueue<Entry>>> gate : heaps.entrySet()) {
+            PriorityBlockingQueue<Entry> heap = gate.getValue().get(type);
+            heap.offer(new Entry(id, distances.get(gate.getKey())[id], version));
+            // stale entries for far spots may never surface; drop them once they dominate the heap
+            if (heap.size() > 2 * spotsPerType[type.ordinal()] + 64) {
+                compact(gate.getKey(), type);
+            }
+        }
+    }
 
+    private void compact(EntryGate gate, VehicleType type) {
+        heaps.get(gate).get(type).removeIf(e -> versions.get(e.spotId) != e.version);
+    }
 
-//         VehicleFactory motoVehicleFactory = new MotorcycleFactory();
-//         Vehicle motorcycle = motoVehicleFactory.createVehicle("MH12CD5678");
+    // resets versions and heaps from current spot occupancy; only safe while no gate is allocating
+    public void rebuild() {
+        for (Map<VehicleType, PriorityBlockingQueue<Entry>> byType : heaps.values()) {
+            for (PriorityBlockingQueue<Entry> heap : byType.values()) {
+                heap.clear();
+            }
+        }
+        for (int id = 0; id < spots.size(); id++) {
+            ParkingSpot spot = spots.get(id);
+            int version = spot.isAvailable() ? 0 : 1;
+            versions.set(id, version);
+            if (version == 0) {
+                for (Map.Entry<EntryGate, Map<VehicleType, PriorityBlockingQueue<Entry>>> gate : heaps.entrySet()) {
+                    gate.getValue().get(spot.getSpotType()).offer(new Entry(id, distances.get(gate.getKey())[id], 0));
+                }
+            }
+        }
+    }
+}
 
-//         VehicleFactory truckFactory = new TruckFactory();
-//         Vehicle truck = truckFactory.createVehicle("MH12EF9012");
+// an advance booking for one vehicle of a given type over [fromMillis, toMillis)
+class SpotReservation {
+    private static final AtomicInteger reservationCounter = new AtomicInteger(1);
+    private final int reservationId;
+    private final String licensePlate;
+    private final VehicleType vehicleType;
+    private final long fromMillis;
+    private final long toMillis;
+    private boolean released;
 
+    SpotReservation(String licensePlate, VehicleType vehicleType, long fromMillis, long toMillis) {
+        this.reservationId = reservationCounter.getAndIncrement();
+        this.licensePlate = licensePlate;
+        this.vehicleType = vehicleType;
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+    }
+    public int getReservationId() {
+        return reservationId;
+    }
+    public String getLicensePlate() {
+        return licensePlate;
+    }
+    public VehicleType getVehicleType() {
+        return vehicleType;
+    }
+    public long getFromMillis() {
+        return fromMillis;
+    }
+    public long getToMillis() {
+        return toMillis;
+    }
+    public boolean covers(long millis) {
+        return fromMillis <= millis && millis < toMillis;
+    }
+    boolean isReleased() {
+        return released;
+    }
+    void markReleased() {
+        this.released = true;
+    }
+}
+
+// held reservations per vehicle type, bucketed in time. each type has a segment tree over the
+// buckets with lazy range-add and range-max, so booking, cancelling and "how many are held at
+// the busiest moment of this window" are all O(log buckets). windows are widened to whole buckets.
+// the buckets form a ring that rolls forward with the clock: a bucket that falls into the past is
+// zeroed and reused for the newest slot of the horizon, so the index never runs out of time.
+// a walk-in may stay for any length of time, so it is treated as taking its spot for the whole
+// horizon: a booking is accepted only if the walk-ins parked now plus the busiest moment of its
+// window still fit, and a walk-in only if it plus the busiest moment from now on still fit. a
+// booked car keeps its hold while parked and gives it back when it leaves, so a confirmed booking
+// always finds a spot, provided booked cars leave by the end of their window. one that stays on
+// counts as a walk-in from then.
+class ReservationIndex {
+    private final ParkingClock clock;
+    private final long bucketMillis;
+    private final int buckets;
+    private final Map<VehicleType, Long> capacity;
+    // spots of each type taken right now, by walk-ins and booked cars alike
+    private final ToLongFunction<VehicleType> occupancy;
+    private final Map<VehicleType, HoldTree> holds = new EnumMap<>(VehicleType.class);
+    private final Map<String, SpotReservation> byPlate = new ConcurrentHashMap<>();
+    // claimed reservations whose car is still in the lot, by plate
+    private final Map<String, SpotReservation> parked = new ConcurrentHashMap<>();
+    // parked.size() per type ordinal; each entry is guarded by that type's HoldTree
+    private final long[] parkedCount = new long[VehicleType.values().length];
+    // live reservations by end time, so ones nobody claimed can be dropped once they lapse
+    private final PriorityQueue<SpotReservation> expiries =
+            new PriorityQueue<>(Comparator.comparingLong(SpotReservation::getToMillis));
+
+    ReservationIndex(ParkingClock clock, long bucketMillis, int buckets, Map<VehicleType, Long> capacity,
+            ToLongFunction<VehicleType> occupancy) {
+        this.clock = clock;
+        this.bucketMillis = bucketMillis;
+        this.buckets = buckets;
+        this.capacity = capacity;
+        this.occupancy = occupancy;
+        long now = nowBucket();
+        for (VehicleType type : VehicleType.values()) {
+            holds.put(type, new HoldTree(buckets, now));
+        }
+    }
+
+    // null when walk-ins and earlier bookings already fill the lot at some point in the window
+    public SpotReservation reserve(String licensePlate, VehicleType type, long fromMillis, long toMillis) {
+        evictExpired();
+        HoldTree tree = holds.get(type);
+        synchronized (tree) {
+            if (walkIns(type) + heldMax(tree, fromMillis, toMillis) >= capacity.get(type)) {
+                return null;
+            }
+            SpotReservation reservation = new SpotReservation(licensePlate, type, fromMillis, toMillis);
+            if (byPlate.putIfAbsent(licensePlate, reservation) != null) {
+                throw new IllegalStateException("Vehicle " + licensePlate + " already has a reservation.");
+            }
+            addHolds(tree, fromMillis, toMillis, 1);
+            synchronized (expiries) {
+                expiries.add(reservation);
+            }
+            return reservation;
+        }
+    }
+
+    public void cancel(SpotReservation reservation) {
+        release(reservation);
+    }
+
+    // the reservation this vehicle could claim right now, without claiming it
+    public SpotReservation find(String licensePlate) {
+        SpotReservation reservation = byPlate.get(licensePlate);
+        if (reservation == null || !reservation.covers(clock.currentTimeMillis())) {
+            return null;
+        }
+        return reservation;
+    }
+
+    // the booked vehicle has its spot. the hold stays until the car leaves or the window ends, so
+    // walk-ins cannot take the spot back while the car is parked
+    public SpotReservation claim(String licensePlate) {
+        evictExpired();
+        SpotReservation reservation = find(licensePlate);
+        if (reservation == null) {
+            return null;
+        }
+        HoldTree tree = holds.get(reservation.getVehicleType());
+        synchronized (tree) {
+            if (reservation.isReleased() || !byPlate.remove(licensePlate, reservation)) {
+                return null;
+            }
+            parked.put(licensePlate, reservation);
+            parkedCount[reservation.getVehicleType().ordinal()]++;
+            return reservation;
+        }
+    }
+
+    // a vehicle left the lot; a booked one gives back what is left of its hold
+    public void departed(String licensePlate) {
+        SpotReservation reservation = parked.get(licensePlate);
+        if (reservation != null) {
+            release(reservation);
+        }
+    }
+
+    private boolean release(SpotReservation reservation) {
+        HoldTree tree = holds.get(reservation.getVehicleType());
+        synchronized (tree) {
+            if (reservation.isReleased()) {
+                return false;
+            }
+            reservation.markReleased();
+            byPlate.remove(reservation.getLicensePlate(), reservation);
+            if (parked.remove(reservation.getLicensePlate(), reservation)) {
+                parkedCount[reservation.getVehicleType().ordinal()]--;
+            }
+            addHolds(tree, reservation.getFromMillis(), reservation.getToMillis(), -1);
+            return true;
+        }
+    }
+
+    // the lock a walk-in of this type must hold from admitsWalkIn until its spot is occupied,
+    // so two gates cannot both take the last spot that is free of bookings
+    public Object admissionLock(VehicleType type) {
+        return holds.get(type);
+    }
+
+    // whether one more walk-in leaves room for every hold from now to the end of the horizon.
+    // lapsed reservations are not evicted here, since callers may already hold a tree; call
+    // evictExpired first
+    public boolean admitsWalkIn(VehicleType type) {
+        HoldTree tree = holds.get(type);
+        synchronized (tree) {
+            tree.roll(nowBucket());
+            return walkIns(type) + 1 + tree.max(0, buckets - 1) <= capacity.get(type);
+        }
+    }
+
+    // caller holds the type's tree
+    private long walkIns(VehicleType type) {
+        return occupancy.applyAsLong(type) - parkedCount[type.ordinal()];
+    }
+
+    // drops reservations whose window ended, so the plate can book again; a booked car still
+    // parked then counts as a walk-in
+    public void evictExpired() {
+        long now = clock.currentTimeMillis();
+        List<SpotReservation> expired = new ArrayList<>();
+        synchronized (expiries) {
+            while (!expiries.isEmpty() && expiries.peek().getToMillis() <= now) {
+                expired.add(expiries.poll());
+            }
+        }
+        for (SpotReservation reservation : expired) {
+            release(reservation);
+        }
+    }
+
+    // holds whose car has not arrived yet; never throws for a clock past the original horizon
+    public long unclaimedHoldsNow(VehicleType type) {
+        evictExpired();
+        HoldTree tree = holds.get(type);
+        synchronized (tree) {
+            long now = nowBucket();
+            tree.roll(now);
+            int slot = slot(now);
+            return tree.max(slot, slot) - parkedCount[type.ordinal()];
+        }
+    }
+
+    // spots of this type that can still be booked across the whole window
+    public long availableCapacity(VehicleType type, long fromMillis, long toMillis) {
+        evictExpired();
+        HoldTree tree = holds.get(type);
+        synchronized (tree) {
+            return capacity.get(type) - walkIns(type) - heldMax(tree, fromMillis, toMillis);
+        }
+    }
+
+    // the past part of a window holds nothing; a window reaching past the horizon is rejected
+    private long heldMax(HoldTree tree, long fromMillis, long toMillis) {
+        long now = nowBucket();
+        tree.roll(now);
+        long first = Math.max(Math.floorDiv(fromMillis, bucketMillis), now);
+        long last = Math.floorDiv(toMillis - 1, bucketMillis);
+        if (last < first) {
+            return 0;
+        }
+        checkHorizon(last, now);
+        int from = slot(first);
+        int to = slot(last);
+        if (from <= to) {
+            return tree.max(from, to);
+        }
+        return Math.max(tree.max(from, buckets - 1), tree.max(0, to));
+    }
+
+    private void addHolds(HoldTree tree, long fromMillis, long toMillis, long delta) {
+        long now = nowBucket();
+        tree.roll(now);
+        long first = Math.max(Math.floorDiv(fromMillis, bucketMillis), now);
+        long last = Math.floorDiv(toMillis - 1, bucketMillis);
+        if (last < first) {
+            return;
+        }
+        checkHorizon(last, now);
+        int from = slot(first);
+        int to = slot(last);
+        if (from <= to) {
+            tree.add(from, to, delta);
+        } else {
+            tree.add(from, buckets - 1, delta);
+            tree.add(0, to, delta);
+        }
+    }
+
+    private void checkHorizon(long bucket, long now) {
+        if (bucket >= now + buckets) {
+            throw new IllegalArgumentException("Time outside the reservation horizon.");
+        }
+    }
+
+    private long nowBucket() {
+        return Math.floorDiv(clock.currentTimeMillis(), bucketMillis);
+    }
+
+    private int slot(long bucket) {
+        return (int) Math.floorMod(bucket, (long) buckets);
+    }
+
+    private static final class HoldTree {
+        private final int size;
+        private final long[] max;
+        private final long[] pending;
+        // absolute bucket number of the oldest slot still in the ring
+        private long oldest;
+
+        HoldTree(int size, long oldest) {
+            this.size = size;
+            this.max = new long[4 * size];
+            this.pending = new long[4 * size];
+            this.oldest = oldest;
+        }
+
+        // zeroes every slot that fell behind now, so it can be reused at the far end of the horizon
+        void roll(long now) {
+            if (now - oldest >= size) {
+                Arrays.fill(max, 0);
+                Arrays.fill(pending, 0);
+                oldest = now;
+                return;
+            }
+            for (; oldest < now; oldest++) {
+                int slot = (int) Math.floorMod(oldest, (long) size);
+                long held = max(slot, slot);
+                if (held != 0) {
+                    add(slot, slot, -held);
+                }
+            }
+        }
+
+        void add(int from, int to, long delta) {
+            add(1, 0, size - 1, from, to, delta);
+        }
+
+        long max(int from, int to) {
+            return max(1, 0, size - 1, from, to);
+        }
+
+        private void add(int node, int lo, int hi, int from, int to, long delta) {
+            if (to < lo || hi < from) {
+                return;
+            }
+            if (from <= lo && hi <= to) {
+                max[node] += delta;
+                pending[node] += delta;
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            add(2 * node, lo, mid, from, to, delta);
+            add(2 * node + 1, mid + 1, hi, from, to, delta);
+            max[node] = pending[node] + Math.max(max[2 * node], max[2 * node + 1]);
+        }
+
+        private long max(int node, int lo, int hi, int from, int to) {
+            if (to < lo || hi < from) {
+                return Long.MIN_VALUE;
+            }
+            if (from <= lo && hi <= to) {
+                return max[node];
+            }
+            int mid = (lo + hi) >>> 1;
+            long child = Math.max(max(2 * node, lo, mid, from, to), max(2 * node + 1, mid + 1, hi, from, to));
+            return child + pending[node];
+        }
+    }
+}
+
+// point-in-time occupancy per floor and vehicle type; counters are read without locking,
+// so a snapshot taken during traffic may be off by the in-flight entries and exits
+class OccupancySnapshot {
+    private final long[][] occupied;
+    private final long[][] capacity;
+
+    OccupancySnapshot(long[][] occupied, long[][] capacity) {
+        this.occupied = occupied;
+        this.capacity = capacity;
+    }
+    public int getFloorCount() {
+        return occupied.length;
+    }
+    public long getOccupied(int floor, VehicleType type) {
+        return occupied[floor][type.ordinal()];
+    }
+    public long getCapacity(int floor, VehicleType type) {
+        return capacity[floor][type.ordinal()];
+    }
+    public long getFree(int floor, VehicleType type) {
+        return getCapacity(floor, type) - getOccupied(floor, type);
+    }
+    public long getTotalOccupied(VehicleType type) {
+        long total = 0;
+        for (long[] floor : occupied) {
+            total += floor[type.ordinal()];
+        }
+        return total;
+    }
+}
+class ParkingLot {
+    List<ParkingFloor> parkingFloors = new CopyOnWriteArrayList<>();
+    // set when the lot was built with gate distances; replaces the per-floor shards for allocation
+    private final NearestSpotIndex nearestSpotIndex;
+    // set when the lot takes advance bookings
+    private ReservationIndex reservationIndex;
+    
+    private ParkingLot(List<ParkingFloor> floors, Map<EntryGate, ToIntFunction<ParkingSpot>> gateDistances) {
+        addParkingFloor(floors);
+        this.nearestSpotIndex = gateDistances.isEmpty() ? null : new NearestSpotIndex(floors, gateDistances);
+    }
+
+    public synchronized void addParkingFloor(List<ParkingFloor> parkingFloorsArray) {
+        if (nearestSpotIndex != null) {
+            throw new IllegalStateException("Floors cannot be added to a lot built with gate distances.");
+        }
+        for (ParkingFloor floor : parkingFloorsArray) {
+            floor.setLevel(parkingFloors.size());
+            parkingFloors.add(floor);
+        }
+    }
+
+    // takes the spot out of the free index; callers must releaseSpot it on exit
+    public ParkingSpot findAvailableSpot(VehicleType type) {
+        return findAvailableSpot(type, 0);
+    }
+
+    // walk-in allocation: tries the home floor first, then steals from neighbours in order of distance
+    public ParkingSpot findAvailableSpot(VehicleType type, int homeFloor) {
+        if (!walkInAllowed(type)) {
+            return null;
+        }
+        return allocate(type, null, homeFloor);
+    }
+
+    // walk-in allocation; picks the closest free spot to the gate when gate distances were configured
+    public ParkingSpot findAvailableSpot(VehicleType type, EntryGate gate) {
+        if (!walkInAllowed(type)) {
+            return null;
+        }
+        return allocate(type, gate, gate.getHomeFloor());
+    }
+
+    // allocation for a vehicle holding a reservation; the spot it was promised is already kept
+    // out of walk-in capacity, so the hold check is skipped
+    public ParkingSpot findReservedSpot(VehicleType type, EntryGate gate) {
+        return allocate(type, gate, gate.getHomeFloor());
+    }
+
+    // every allocation path ends here. a lot built with gate distances hands out spots only from
+    // the nearest-gate index (the default gate's order when no gate is given), since the floor
+    // queues are not kept in step with it; otherwise the floor queues are polled from homeFloor.
+    private ParkingSpot allocate(VehicleType type, EntryGate gate, int homeFloor) {
+        if (nearestSpotIndex != null) {
+            return nearestSpotIndex.claim(type, gate);
+        }
+        return pollFromFloors(type, homeFloor);
+    }
+
+    private ParkingSpot pollFromFloors(VehicleType type, int homeFloor) {
+        int size = parkingFloors.size();
+        if (size == 0) {
+            return null;
+        }
+        int home = Math.floorMod(homeFloor, size);
+        for (int distance = 0; distance < size; distance++) {
+            int up = home + distance;
+            if (up < size) {
+                ParkingSpot spot = parkingFloors.get(up).pollAvailableSpot(type);
+                if (spot != null) return spot;
+            }
+            int down = home - distance;
+            if (distance > 0 && down >= 0) {
+                ParkingSpot spot = parkingFloors.get(down).pollAvailableSpot(type);
+                if (spot != null) return spot;
+            }
+        }
+        return null;
+    }
+
+    // walk-ins may only take a spot that no booking will need while they stay. the check reads
+    // occupancy counters, so callers racing on the last spots must evict lapsed reservations and
+    // then hold the type's admission lock until the spot is occupied, as ParkingService does.
+    private boolean walkInAllowed(VehicleType type) {
+        return reservationIndex == null || reservationIndex.admitsWalkIn(type);
+    }
+
+    public long getOccupied(VehicleType type) {
+        long occupied = 0;
+        for (ParkingFloor floor : parkingFloors) {
+            occupied += floor.getOccupied(type);
+        }
+        return occupied;
+    }
+
+    public long getCapacity(VehicleType type) {
+        long capacity = 0;
+        for (ParkingFloor floor : parkingFloors) {
+            capacity += floor.getCapacity(type);
+        }
+        return capacity;
+    }
+
+    public ReservationIndex getReservationIndex() {
+        return reservationIndex;
+    }
+
+    // allocation CAS losses summed over floors; a full lot adds nothing here
+    public long getClaimConflicts() {
+        long conflicts = 0;
+        for (ParkingFloor floor : parkingFloors) {
+            conflicts += floor.getClaimConflicts();
+        }
+        return conflicts;
+    }
+
+    public void releaseSpot(ParkingSpot spot) {
+        if (nearestSpotIndex != null) {
+            nearestSpotIndex.release(spot);
+            return;
+        }
+        spot.getFloor().releaseSpot(spot);
+    }
+
+    // after spots were filled directly (journal replay), resync whichever free index is in use
+    public void rebuildFreeIndex() {
+        for (ParkingFloor floor : parkingFloors) {
+            floor.rebuildFreeIndex();
+        }
+        if (nearestSpotIndex != null) {
+            nearestSpotIndex.rebuild();
+        }
+    }
+
+    public OccupancySnapshot getOccupancySnapshot() {
+        List<ParkingFloor> floors = new ArrayList<>(parkingFloors);
+        int types = VehicleType.values().length;
+        long[][] occupied = new long[floors.size()][types];
+        long[][] capacity = new long[floors.size()][types];
+        for (int f = 0; f < floors.size(); f++) {
+            for (VehicleType type : VehicleType.values()) {
+                occupied[f][type.ordinal()] = floors.get(f).getOccupied(type);
+                capacity[f][type.ordinal()] = floors.get(f).getCapacity(type);
+            }
+        }
+        return new OccupancySnapshot(occupied, capacity);
+    }
+
+    public static Builder build() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private final List<ParkingFloor> floors = new ArrayList<>();
+        private final Map<EntryGate, ToIntFunction<ParkingSpot>> gateDistances = new LinkedHashMap<>();
+        private ParkingClock reservationClock;
+        private long reservationBucketMillis;
+        private int reservationBuckets;
+
+        public Builder addFloor(int carSpots,int bikeSpots, int truckSpots){
+            ParkingFloor floor = new ParkingFloor();
+            List<ParkingSpot> spots = new ArrayList<>();
+
+            for(int i=0;i<carSpots;i++) {
+                spots.add(new ParkingSpot(VehicleType.CAR));
+            }
+            for(int i=0;i<bikeSpots;i++) {
+                spots.add(new ParkingSpot(VehicleType.MOTORCYCLE));
+            }
+            for(int i=0;i<truckSpots;i++) {
+                spots.add(new ParkingSpot(VehicleType.TRUCK));
+            }
+            floor.addParkingSpots(spots);
+            floors.add(floor);
+            return this;
+        }
+        // same spot mix as addFloor, stored as packed arrays instead of one object per spot
+        public Builder addCompactFloor(int carSpots, int bikeSpots, int truckSpots) {
+            floors.add(new CompactParkingFloor(carSpots, bikeSpots, truckSpots));
+            return this;
+        }
+        // enables nearest-to-gate allocation; distance is evaluated once per spot at build time
+        public Builder addGate(EntryGate gate, ToIntFunction<ParkingSpot> distanceFromGate) {
+            gateDistances.put(gate, distanceFromGate);
+            return this;
+        }
+        // enables advance bookings over a horizon of time buckets that rolls forward with the clock
+        public Builder withReservations(ParkingClock clock, long bucketMillis, int buckets) {
+            this.reservationClock = clock;
+            this.reservationBucketMillis = bucketMillis;
+            this.reservationBuckets = buckets;
+            return this;
+        }
+        public ParkingLot build() {
+            ParkingLot lot = new ParkingLot(floors, gateDistances);
+            if (reservationClock != null) {
+                Map<VehicleType, Long> capacity = new EnumMap<>(VehicleType.class);
+                for (VehicleType type : VehicleType.values()) {
+                    capacity.put(type, lot.getCapacity(type));
+                }
+                lot.reservationIndex = new ReservationIndex(reservationClock, reservationBucketMillis,
+                        reservationBuckets, capacity, lot::getOccupied);
+            }
+            return lot;
+        }
+    }
+}
+
+// time source for tickets: a monotonic reading for durations and one wall-clock reading for receipts
+interface ParkingClock {
+    long nanoTime();
+    long currentTimeMillis();
+
+    ParkingClock SYSTEM = new ParkingClock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+}
+// clock that only moves when told to, for deterministic duration tests
+class ManualParkingClock implements ParkingClock {
+    private final AtomicLong nanos = new AtomicLong();
+    private final long startMillis;
+
+    public ManualParkingClock(long startMillis) {
+        this.startMillis = startMillis;
+    }
+    public void advanceMinutes(long minutes) {
+        nanos.addAndGet(minutes * 60_000_000_000L);
+    }
+    @Override
+    public long nanoTime() {
+        return nanos.get();
+    }
+    @Override
+    public long currentTimeMillis() {
+        return startMillis + nanos.get() / 1_000_000L;
+    }
+}
+
+class ParkingTicket {
+    private static final AtomicInteger ticketCounter = new AtomicInteger(1);
+    private static final long NANOS_PER_MINUTE = 60_000_000_000L;
+    private final int ticketId;
+    private final Vehicle vehicle;
+    private final ParkingClock clock;
+    // durations come from the monotonic pair; wall time is only derived for receipts
+    private final long entryNanos;
+    private final long entryEpochMillis;
+    private long exitNanos;
+    private boolean closed;
+    private final ParkingSpot spot;
+    private final AtomicReference<Status> status = new AtomicReference<>(Status.ACTIVE);
+
+    public ParkingTicket(Vehicle vehicle, ParkingSpot spot) {
+        this(vehicle, spot, ParkingClock.SYSTEM);
+    }
+    public ParkingTicket(Vehicle vehicle, ParkingSpot spot, ParkingClock clock) {
+        this.ticketId = ticketCounter.getAndIncrement();
+        this.vehicle = vehicle;
+        this.clock = clock;
+        this.entryNanos = clock.nanoTime();
+        this.entryEpochMillis = clock.currentTimeMillis();
+        this.spot = spot;
+    }
+    // journal replay: rebuilds an open ticket with its original id and entry time
+    ParkingTicket(int ticketId, Vehicle vehicle, ParkingSpot spot, ParkingClock clock, long entryEpochMillis) {
+        this.ticketId = ticketId;
+        this.vehicle = vehicle;
+        this.clock = clock;
+        this.entryEpochMillis = entryEpochMillis;
+        this.entryNanos = clock.nanoTime() - (clock.currentTimeMillis() - entryEpochMillis) * 1_000_000L;
+        this.spot = spot;
+        ticketCounter.accumulateAndGet(ticketId + 1, Math::max);
+    }
+    static void advanceCounterPast(int ticketId) {
+        ticketCounter.accumulateAndGet(ticketId + 1, Math::max);
+    }
+    public long getEntryEpochMillis() {
+        return entryEpochMillis;
+    }
+    public void closeTicket() {
+        this.exitNanos = clock.nanoTime();
+        this.closed = true;
+    }
+    public int getParkingDuration() {
+        if (!closed) {
+            throw new IllegalStateException("Exit time not recorded.");
+        }
+        long minutes = (exitNanos - entryNanos) / NANOS_PER_MINUTE;
+        int hours = (int) Math.ceil(minutes / 60.0);
+        return Math.max(hours, 1);
+    }
+    public LocalDateTime getEntryTime() {
+        return toLocalDateTime(entryEpochMillis);
+    }
+    public LocalDateTime getExitTime() {
+        if (!closed) {
+            return null;
+        }
+        return toLocalDateTime(entryEpochMillis + (exitNanos - entryNanos) / 1_000_000L);
+    }
+    private static LocalDateTime toLocalDateTime(long epochMillis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+    }
+    public double calculateAmount(PricingStrategy strategy) {
+        int hours = getParkingDuration();
+        return strategy.calculatePrice(vehicle,hours);
+    }
+    // only one exit may charge a ticket: the winner of this CAS pays, everyone else is turned away
+    public boolean beginPayment() {
+        return status.compareAndSet(Status.ACTIVE, Status.PAYING);
+    }
+    // payment failed; the ticket can be exited again
+    public void abortPayment() {
+        status.compareAndSet(Status.PAYING, Status.ACTIVE);
+    }
+    public void markPaid() {
+        status.set(Status.PAID);
+    }
+    public int getTicketId() {
+        return ticketId;
+    }
+    public ParkingSpot getSpot() {
+        return spot;
+    }
+    public Vehicle getVehicle() {
+        return vehicle;
+    }
+    public Status getStatus() {
+        return status.get();
+    }
+    
+}
+
+// active tickets by id and by plate, so an exit gate can work from a scanned plate alone
+class TicketRegistry {
+    private final Map<Integer, ParkingTicket> ticketsById = new ConcurrentHashMap<>();
+    private final Map<String, ParkingTicket> ticketsByPlate = new ConcurrentHashMap<>();
+
+    // false when the plate already has an active ticket
+    public boolean register(ParkingTicket ticket) {
+        if (ticketsByPlate.putIfAbsent(ticket.getVehicle().getLicensePlate(), ticket) != null) {
+            return false;
+        }
+        ticketsById.put(ticket.getTicketId(), ticket);
+        return true;
+    }
+    public void unregister(ParkingTicket ticket) {
+        ticketsById.remove(ticket.getTicketId(), ticket);
+        ticketsByPlate.remove(ticket.getVehicle().getLicensePlate(), ticket);
+    }
+    public ParkingTicket findById(int ticketId) {
+        return ticketsById.get(ticketId);
+    }
+    public ParkingTicket findByPlate(String licensePlate) {
+        return ticketsByPlate.get(licensePlate);
+    }
+    public int size() {
+        return ticketsById.size();
+    }
+}
+
+// append-only, memory-mapped log of enter/exit events. appenders write into the mapping and
+// wait on awaitDurable; a single flusher thread forces the file on a short interval, so every
+// gate that appended within one interval shares the same fsync (group commit).
+//
+// record layout: [length:int][crc:int][kind:byte][ticketId:int]
+//   ENTER adds [floor:int][spot:int][vehicleType:byte][entryEpochMillis:long][plateLength:short][plate bytes]
+//   CHECKPOINT carries the highest ticket id issued so far in place of a ticket id
+// the crc covers everything after the header. a record is written body first and its length
+// last, and the log ends at the first record whose length or crc does not check out: a zero
+// length (a fresh mapping is zero-filled) or the remains of an append torn by a crash. those
+// remains are zeroed on open so later appends are not mistaken for them.
+//
+// when the mapping fills up the journal checkpoints: a CHECKPOINT record plus the ENTER records of
+// cars still parked are written to a new file, which is forced and renamed over the old one, and
+// the new file is mapped in its place. a day of traffic therefore only needs room for the cars
+// parked at once. positions handed to awaitDurable are logical (bytes ever appended), so they keep
+// growing across checkpoints.
+class ParkingJournal implements AutoCloseable {
+    private static final byte ENTER = 1;
+    private static final byte EXIT = 2;
+    private static final byte CHECKPOINT = 3;
+    private static final int HEADER = Integer.BYTES + Integer.BYTES;
+    private static final int KIND = HEADER;
+    private static final int TICKET_ID = HEADER + 1;
+    private static final int MIN_RECORD = HEADER + 1 + Integer.BYTES;
+
+    private final Path file;
+    private final int capacityBytes;
+    // guards appends and the position; mappingLock guards swapping the mapping against a force
+    private final Object appendLock = new Object();
+    private final Object mappingLock = new Object();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    // logical position of byte 0 of the current mapping
+    private long base;
+    private int checkpoints;
+    private final Object durableLock = new Object();
+    private final Thread flusher;
+    private final long flushIntervalMillis;
+    private volatile long durablePosition;
+    private volatile boolean closed;
+
+    public ParkingJournal(Path file, int capacityBytes, long flushIntervalMillis) throws IOException {
+        this.file = file;
+        this.capacityBytes = capacityBytes;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacityBytes);
+        this.flushIntervalMillis = flushIntervalMillis;
+        int end = findEnd();
+        if (end + Integer.BYTES <= capacityBytes && buffer.getInt(end) != 0) {
+            for (int position = end; position < capacityBytes; position++) {
+                buffer.put(position, (byte) 0);
+            }
+            buffer.force();
+        }
+        buffer.position(end);
+        this.durablePosition = buffer.position();
+        this.flusher = new Thread(this::flushLoop, "parking-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private int findEnd() {
+        int position = 0;
+        while (position + HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length < MIN_RECORD || position + length > buffer.capacity()
+                    || buffer.getInt(position + Integer.BYTES) != crc(buffer, position, length)) {
+                break;
+            }
+            position += length;
+        }
+        return position;
+    }
+
+    private static int crc(ByteBuffer records, int recordStart, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(records.slice(recordStart + HEADER, length - HEADER));
+        return (int) crc.getValue();
+    }
+
+    // fills in the header of the record written from recordStart up to the buffer position,
+    // length last so a record is never valid before its body is complete
+    private static void seal(ByteBuffer records, int recordStart) {
+        int length = records.position() - recordStart;
+        records.putInt(recordStart + Integer.BYTES, crc(records, recordStart, length));
+        records.putInt(recordStart, length);
+    }
+
+    public long appendEnter(ParkingTicket ticket) {
+        ParkingSpot spot = ticket.getSpot();
+        byte[] plate = ticket.getVehicle().getLicensePlate().getBytes(StandardCharsets.UTF_8);
+        int length = HEADER + 1 + Integer.BYTES + Integer.BYTES + Integer.BYTES + 1 + Long.BYTES
+                + Short.BYTES + plate.length;
+        synchronized (appendLock) {
+            ensureCapacity(length);
+            int recordStart = buffer.position();
+            buffer.position(recordStart + HEADER);
+            buffer.put(ENTER);
+            buffer.putInt(ticket.getTicketId());
+            buffer.putInt(spot.getFloor().getLevel());
+            buffer.putInt(spot.getIndex());
+            buffer.put((byte) spot.getSpotType().ordinal());
+            buffer.putLong(ticket.getEntryEpochMillis());
+            buffer.putShort((short) plate.length);
+            buffer.put(plate);
+            seal(buffer, recordStart);
+            return base + buffer.position();
+        }
+    }
+
+    public long appendExit(ParkingTicket ticket) {
+        synchronized (appendLock) {
+            ensureCapacity(MIN_RECORD);
+            int recordStart = buffer.position();
+            buffer.position(recordStart + HEADER);
+            buffer.put(EXIT);
+            buffer.putInt(ticket.getTicketId());
+            seal(buffer, recordStart);
+            return base + buffer.position();
+        }
+    }
+
+    private void ensureCapacity(int length) {
+        if (closed) {
+            throw new IllegalStateException("Journal closed.");
+        }
+        // keep room for the zero end marker after the record
+        if (buffer.remaining() < length + Integer.BYTES) {
+            checkpoint();
+        }
+        if (buffer.remaining() < length + Integer.BYTES) {
+            throw new IllegalStateException("Journal full: every record left belongs to a parked car.");
+        }
+    }
+
+    // rewrites the journal as one CHECKPOINT record plus the ENTER records of cars still parked.
+    // the new file is complete and forced before it replaces the old one, so a crash leaves
+    // either the old journal or the new one, never a mix.
+    public void checkpoint() {
+        synchronized (appendLock) {
+            int end = buffer.position();
+            Map<Integer, Integer> openEntries = new LinkedHashMap<>();
+            int maxTicketId = 0;
+            for (int position = 0; position < end; position += buffer.getInt(position)) {
+                int ticketId = buffer.getInt(position + TICKET_ID);
+                byte kind = buffer.get(position + KIND);
+                if (kind == ENTER) {
+                    openEntries.put(ticketId, position);
+                } else if (kind == EXIT) {
+                    openEntries.remove(ticketId);
+                }
+                maxTicketId = Math.max(maxTicketId, ticketId);
+            }
+            int keptBytes = MIN_RECORD;
+            for (int recordStart : openEntries.values()) {
+                keptBytes += buffer.getInt(recordStart);
+            }
+            ByteBuffer compacted = ByteBuffer.allocate(keptBytes);
+            compacted.position(HEADER);
+            compacted.put(CHECKPOINT);
+            compacted.putInt(maxTicketId);
+            seal(compacted, 0);
+            for (int recordStart : openEntries.values()) {
+                compacted.put(buffer.slice(recordStart, buffer.getInt(recordStart)));
+            }
+            compacted.flip();
+
+            Path next = file.resolveSibling(file.getFileName() + ".checkpoint");
+            synchronized (mappingLock) {
+                try {
+                    try (FileChannel out = FileChannel.open(next, StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                        while (compacted.hasRemaining()) {
+                            out.write(compacted);
+                        }
+                        out.force(true);
+                    }
+                    // everything appended so far is either exited or in the new file, so it is durable
+                    buffer.force();
+                    Files.move(next, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    channel.close();
+                    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacityBytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Journal checkpoint failed.", e);
+                }
+                base += end - keptBytes;
+                buffer.position(keptBytes);
+                checkpoints++;
+            }
+            markDurable(base + keptBytes);
+        }
+    }
+
+    public int getCheckpointCount() {
+        synchronized (appendLock) {
+            return checkpoints;
+        }
+    }
+
+    // blocks until everything up to position has been forced to disk
+    public void awaitDurable(long position) {
+        synchronized (durableLock) {
+            while (durablePosition < position) {
+                if (closed) {
+                    throw new IllegalStateException("Journal closed.");
+                }
+                try {
+                    durableLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted waiting for journal.", e);
+                }
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(flushIntervalMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+            flush();
+        }
+    }
+
+    private void flush() {
+        long position;
+        MappedByteBuffer target;
+        synchronized (appendLock) {
+            position = base + buffer.position();
+            target = buffer;
+        }
+        if (position > durablePosition) {
+            synchronized (mappingLock) {
+                // a checkpoint swapped the mapping in between; it already forced everything
+                if (target != buffer) {
+                    return;
+                }
+                target.force();
+            }
+            markDurable(position);
+        }
+    }
+
+    private void markDurable(long position) {
+        synchronized (durableLock) {
+            if (position > durablePosition) {
+                durablePosition = position;
+            }
+            durableLock.notifyAll();
+        }
+    }
+
+    // rebuilds spot occupancy, open tickets and the ticket counter from the log
+    public int replay(ParkingLot parkingLot, TicketRegistry ticketRegistry, ParkingClock clock) {
+        Map<Integer, Integer> openEntries = new LinkedHashMap<>();
+        int maxTicketId = 0;
+        int end;
+        synchronized (appendLock) {
+            end = buffer.position();
+        }
+        int position = 0;
+        while (position < end) {
+            int length = buffer.getInt(position);
+            int ticketId = buffer.getInt(position + TICKET_ID);
+            byte kind = buffer.get(position + KIND);
+            if (kind == ENTER) {
+                openEntries.put(ticketId, position);
+            } else if (kind == EXIT) {
+                openEntries.remove(ticketId);
+            }
+            maxTicketId = Math.max(maxTicketId, ticketId);
+            position += length;
+        }
+
+        for (int recordStart : openEntries.values()) {
+            int field = recordStart + TICKET_ID;
+            int ticketId = buffer.getInt(field);
+            int level = buffer.getInt(field + 4);
+            int spotIndex = buffer.getInt(field + 8);
+            VehicleType type = VehicleType.values()[buffer.get(field + 12)];
+            long entryEpochMillis = buffer.getLong(field + 13);
+            int plateLength = buffer.getShort(field + 21);
+            byte[] plate = new byte[plateLength];
+            buffer.get(field + 23, plate);
+
+            Vehicle vehicle = VehicleFactory.forType(type).createVehicle(new String(plate, StandardCharsets.UTF_8));
+            ParkingSpot spot = parkingLot.parkingFloors.get(level).restoreSpot(spotIndex, vehicle);
+            if (spot == null) {
+                throw new IllegalStateException("Journal replays ticket " + ticketId + " into an occupied spot.");
+            }
+            ticketRegistry.register(new ParkingTicket(ticketId, vehicle, spot, clock, entryEpochMillis));
+        }
+        parkingLot.rebuildFreeIndex();
+        ParkingTicket.advanceCounterPast(maxTicketId);
+        return openEntries.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        closed = true;
+        flusher.interrupt();
+        synchronized (durableLock) {
+            durableLock.notifyAll();
+        }
+        synchronized (mappingLock) {
+            channel.close();
+        }
+    }
+}
+
+// runs PaymentStrategy.pay off the exit lane's thread with a per-attempt timeout, a fixed number
+// of retries and a cap on payments in flight. when the cap is hit the exit fails fast instead of
+// queueing behind a slow terminal.
+// an attempt's clock starts when a worker picks it up, not while it waits in the queue. on timeout
+// the worker is interrupted, but the attempt only ends when the strategy returns: a late return
+// still counts as paid, and only an attempt that threw is retried, so one exit is never charged
+// twice. the in-flight permit is held until the last attempt's worker is done.
+class AsyncPaymentStage implements AutoCloseable {
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService watchdog;
+    private final Semaphore inFlight;
+    private final long timeoutMillis;
+    private final int maxRetries;
+
+    private static final class AttemptWatch {
+        boolean running = true;
+        boolean timedOut;
+    }
+
+    public AsyncPaymentStage(int workers, int maxInFlight, long timeoutMillis, int maxRetries) {
+        // permits keep at most maxInFlight attempts queued or running, so the queue never overflows
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxInFlight), runnable -> {
+                    Thread thread = new Thread(runnable, "parking-payment");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "parking-payment-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.inFlight = new Semaphore(maxInFlight);
+        this.timeoutMillis = timeoutMillis;
+        this.maxRetries = maxRetries;
+    }
+
+    public CompletableFuture<Void> submit(double amount, PaymentStrategy paymentStrategy) {
+        if (!inFlight.tryAcquire()) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Too many payments in flight."));
+        }
+        CompletableFuture<Void> result = attempt(amount, paymentStrategy, 0);
+        result.whenComplete((ignored, error) -> inFlight.release());
+        return result;
+    }
+
+    private CompletableFuture<Void> attempt(double amount, PaymentStrategy paymentStrategy, int attempt) {
+        CompletableFuture<Void> outcome = new CompletableFuture<>();
+        try {
+            executor.execute(() -> run(amount, paymentStrategy, outcome));
+        } catch (RejectedExecutionException e) {
+            outcome.completeExceptionally(e);
+        }
+        return outcome
+                .handle((ignored, error) -> {
+                    if (error == null) {
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                    if (attempt >= maxRetries) {
+                        return CompletableFuture.<Void>failedFuture(error);
+                    }
+                    return attempt(amount, paymentStrategy, attempt + 1);
+                })
+                .thenCompose(next -> next);
+    }
+
+    private void run(double amount, PaymentStrategy paymentStrategy, CompletableFuture<Void> outcome) {
+        Thread worker = Thread.currentThread();
+        AttemptWatch watch = new AttemptWatch();
+        ScheduledFuture<?> timer = watchdog.schedule(() -> {
+            synchronized (watch) {
+                if (watch.running) {
+                    watch.timedOut = true;
+                    worker.interrupt();
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        Throwable error = null;
+        try {
+            paymentStrategy.pay(amount);
+        } catch (Throwable e) {
+            error = e;
+        }
+        timer.cancel(false);
+        boolean timedOut;
+        synchronized (watch) {
+            watch.running = false;
+            timedOut = watch.timedOut;
+        }
+        if (timedOut) {
+            // the interrupt was meant for this attempt only; don't let it reach the next task
+            Thread.interrupted();
+        }
+        if (error == null) {
+            outcome.complete(null);
+        } else if (timedOut) {
+            outcome.completeExceptionally(new TimeoutException("Payment attempt timed out after " + timeoutMillis + " ms."));
+        } else {
+            outcome.completeExceptionally(error);
+        }
+    }
+
+    public int getAvailableSlots() {
+        return inFlight.availablePermits();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        watchdog.shutdownNow();
+    }
+}
+
+// outcome of one item in a bulk enter/exit; a failure never aborts the rest of the batch
+class ParkingResult {
+    private final ParkingTicket ticket;
+    private final String error;
+
+    private ParkingResult(ParkingTicket ticket, String error) {
+        this.ticket = ticket;
+        this.error = error;
+    }
+    public static ParkingResult success(ParkingTicket ticket) {
+        return new ParkingResult(ticket, null);
+    }
+    public static ParkingResult failure(ParkingTicket ticket, String error) {
+        return new ParkingResult(ticket, error);
+    }
+    public boolean isSuccess() {
+        return error == null;
+    }
+    public ParkingTicket getTicket() {
+        return ticket;
+    }
+    public String getError() {
+        return error;
+    }
+}
+
+class ParkingService { 
+    private final ParkingLot parkingLot;
+    private final EntryGate entryGate;
+    private final ExitGate exitGate;
+    private final TicketRegistry ticketRegistry;
+    private final ParkingClock clock;
+    // optional; null keeps the lot purely in memory
+    private final ParkingJournal journal;
+
+    public ParkingService(ParkingLot parkingLot, EntryGate entryGate, ExitGate exitGate) {
+        this(parkingLot, entryGate, exitGate, new TicketRegistry());
+    }
+    public ParkingService(ParkingLot parkingLot, EntryGate entryGate, ExitGate exitGate,
+    TicketRegistry ticketRegistry) {
+        this(parkingLot, entryGate, exitGate, ticketRegistry, ParkingClock.SYSTEM);
+    }
+    public ParkingService(ParkingLot parkingLot, EntryGate entryGate, ExitGate exitGate,
+    TicketRegistry ticketRegistry, ParkingClock clock) {
+        this(parkingLot, entryGate, exitGate, ticketRegistry, clock, null);
+    }
+    public ParkingService(ParkingLot parkingLot, EntryGate entryGate, ExitGate exitGate,
+    TicketRegistry ticketRegistry, ParkingClock clock, ParkingJournal journal) {
+        this.parkingLot = parkingLot;
+        this.entryGate = entryGate;
+        this.exitGate = exitGate;
+        this.ticketRegistry = ticketRegistry;
+        this.clock = clock;
+        this.journal = journal;
+    }
+    public ParkingLot getParkingLot() {
+        return parkingLot;
+    }
+    // call once at startup, before any gate traffic
+    public int recover() {
+        if(journal == null) {
+            throw new IllegalStateException("No journal configured.");
+        }
+        return journal.replay(parkingLot, ticketRegistry, clock);
+    }
+    public ParkingTicket enter(Vehicle vehicle){
+        return enter(vehicle, entryGate);
+    }
+    // lets several gates share one service, each allocating from its own home floor
+    public ParkingTicket enter(Vehicle vehicle, EntryGate entryGate){
+        boolean reserved = hasReservation(vehicle);
+        ParkingTicket ticket = park(vehicle, entryGate, reserved);
+        if(journal != null) {
+            try {
+                journal.awaitDurable(journal.appendEnter(ticket));
+            } catch (RuntimeException e) {
+                unpark(ticket);
+                throw e;
+            }
+        }
+        admit(ticket, entryGate, reserved);
+        return ticket;
+    }
+    private boolean hasReservation(Vehicle vehicle) {
+        ReservationIndex reservations = parkingLot.getReservationIndex();
+        return reservations != null && reservations.find(vehicle.getLicensePlate()) != null;
+    }
+    // takes a spot and registers the ticket; nothing is journaled or claimed yet
+    private ParkingTicket park(Vehicle vehicle, EntryGate entryGate, boolean reserved) {
+        ReservationIndex reservations = parkingLot.getReservationIndex();
+        ParkingSpot spot;
+        if(reserved || reservations == null) {
+            spot = occupySpot(vehicle, entryGate, reserved);
+        } else {
+            reservations.evictExpired();
+            synchronized (reservations.admissionLock(vehicle.getVehicleType())) {
+                spot = occupySpot(vehicle, entryGate, false);
+            }
+        }
+        ParkingTicket ticket = new ParkingTicket(vehicle, spot, clock);
+        if(!ticketRegistry.register(ticket)) {
+            vacate(spot, vehicle);
+            throw new RuntimeException("Vehicle " + vehicle.getLicensePlate() + " is already parked.");
+        }
+        return ticket;
+    }
+    private ParkingSpot occupySpot(Vehicle vehicle, EntryGate entryGate, boolean reserved) {
+        ParkingSpot spot = reserved
+                ? parkingLot.findReservedSpot(vehicle.getVehicleType(), entryGate)
+                : parkingLot.findAvailableSpot(vehicle.getVehicleType(), entryGate);
+        if(spot == null) {
+            throw new RuntimeException("No available spot.");
+        }
+        // a failed CAS means someone else holds the spot and will release it on their exit;
+        // putting it back here would leave an occupied spot in the free index
+        if(!spot.assignVehicle(vehicle)) {
+            spot.getFloor().recordClaimConflict();
+            throw new RuntimeException("No available spot.");
+        }
+        return spot;
+    }
+    private void unpark(ParkingTicket ticket) {
+        ticketRegistry.unregister(ticket);
+        vacate(ticket.getSpot(), ticket.getVehicle());
+    }
+    // the entry is durable: the hold is only claimed once the car has its spot, so a failed entry
+    // keeps the booking
+    private void admit(ParkingTicket ticket, EntryGate entryGate, boolean reserved) {
+        if(reserved) {
+            parkingLot.getReservationIndex().claim(ticket.getVehicle().getLicensePlate());
+        }
+        entryGate.openGate();
+    }
+    // frees the spot only if this vehicle was still in it, so a repeated exit cannot hand the
+    // same spot to the free index twice. a booked car gives back its hold as it leaves.
+    private void vacate(ParkingSpot spot, Vehicle vehicle) {
+        if(spot.removeVehicle(vehicle)) {
+            parkingLot.releaseSpot(spot);
+            ReservationIndex reservations = parkingLot.getReservationIndex();
+            if(reservations != null) {
+                reservations.departed(vehicle.getLicensePlate());
+            }
+        }
+    }
+    // the EXIT record is durable before the customer is charged, and a failed charge re-opens the
+    // ticket with a fresh ENTER record. a crash mid-payment therefore replays as exited: at worst a
+    // charge is missed, never taken twice.
+    private void journalExit(ParkingTicket ticket) {
+        if(journal != null) {
+            journal.awaitDurable(journal.appendExit(ticket));
+        }
+    }
+    private void journalReopen(ParkingTicket ticket) {
+        if(journal != null) {
+            journal.awaitDurable(journal.appendEnter(ticket));
+        }
+    }
+    public void exit(ParkingTicket ticket,PricingStrategy pricingStrategy,
+    PaymentStrategy paymentStrategy) {
+        if(!ticket.beginPayment()) {
+            throw new IllegalStateException("Ticket already paid or being paid.");
+        }
+        double amount;
+        try {
+            ticket.closeTicket();
+            amount = ticket.calculateAmount(pricingStrategy);
+            journalExit(ticket);
+        } catch (RuntimeException e) {
+            ticket.abortPayment();
+            throw e;
+        }
+        try {
+            paymentStrategy.pay(amount);
+        } catch (RuntimeException e) {
+            journalReopen(ticket);
+            ticket.abortPayment();
+            throw e;
+        }
+        vacate(ticket.getSpot(), ticket.getVehicle());
+        ticket.markPaid();  
+        ticketRegistry.unregister(ticket);
+        exitGate.openGate();
+    }
+    public ParkingTicket exit(String licensePlate, PricingStrategy pricingStrategy,
+    PaymentStrategy paymentStrategy) {
+        ParkingTicket ticket = ticketRegistry.findByPlate(licensePlate);
+        if(ticket == null) {
+            throw new RuntimeException("No active ticket for " + licensePlate + ".");
+        }
+        exit(ticket, pricingStrategy, paymentStrategy);
+        return ticket;
+    }
+    // prices the ticket and hands payment to the stage; the spot is freed and the ticket marked
+    // PAID only once payment succeeds. the ticket is PAYING meanwhile, so a second exit is refused
+    // rather than charging again. on failure the ticket goes back to ACTIVE and the spot stays held.
+    public CompletableFuture<ParkingTicket> exitAsync(ParkingTicket ticket, PricingStrategy pricingStrategy,
+    PaymentStrategy paymentStrategy, AsyncPaymentStage paymentStage) {
+        if(!ticket.beginPayment()) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Ticket already paid or being paid."));
+        }
+        double amount;
+        try {
+            ticket.closeTicket();
+            amount = ticket.calculateAmount(pricingStrategy);
+            journalExit(ticket);
+        } catch (RuntimeException e) {
+            ticket.abortPayment();
+            return CompletableFuture.failedFuture(e);
+        }
+        return paymentStage.submit(amount, paymentStrategy).whenComplete((paid, error) -> {
+            if(error != null) {
+                journalReopen(ticket);
+                ticket.abortPayment();
+            }
+        }).thenApply(paid -> {
+            vacate(ticket.getSpot(), ticket.getVehicle());
+            ticket.markPaid();
+            ticketRegistry.unregister(ticket);
+            exitGate.openGate();
+            return ticket;
+        });
+    }
+    public TicketRegistry getTicketRegistry() {
+        return ticketRegistry;
+    }
+
+    // parks and journals every vehicle first, then waits once for the whole batch to be durable,
+    // so a bus of arrivals shares one fsync instead of queueing behind one each
+    public List<ParkingResult> enterAll(List<Vehicle> vehicles) {
+        ParkingResult[] results = new ParkingResult[vehicles.size()];
+        boolean[] reserved = new boolean[vehicles.size()];
+        long position = 0;
+        for (int i = 0; i < vehicles.size(); i++) {
+            Vehicle vehicle = vehicles.get(i);
+            ParkingTicket ticket;
+            try {
+                reserved[i] = hasReservation(vehicle);
+                ticket = park(vehicle, entryGate, reserved[i]);
+            } catch (RuntimeException e) {
+                results[i] = ParkingResult.failure(null, e.getMessage());
+                continue;
+            }
+            if (journal != null) {
+                try {
+                    position = journal.appendEnter(ticket);
+                } catch (RuntimeException e) {
+                    unpark(ticket);
+                    results[i] = ParkingResult.failure(null, e.getMessage());
+                    continue;
+                }
+            }
+            results[i] = ParkingResult.success(ticket);
+        }
+
+        String journalError = null;
+        if (journal != null && position > 0) {
+            try {
+                journal.awaitDurable(position);
+            } catch (RuntimeException e) {
+                journalError = e.getMessage();
+            }
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            if (!results[i].isSuccess()) continue;
+            ParkingTicket ticket = results[i].getTicket();
+            if (journalError != null) {
+                unpark(ticket);
+                results[i] = ParkingResult.failure(null, journalError);
+                continue;
+            }
+            admit(ticket, entryGate, reserved[i]);
+        }
+        return Arrays.asList(results);
+    }
+
+    // prices every ticket first, then submits a single payment for the whole batch
+    public List<ParkingResult> exitAll(List<ParkingTicket> tickets, PricingStrategy pricingStrategy,
+    PaymentStrategy paymentStrategy) {
+        ParkingResult[] results = new ParkingResult[tickets.size()];
+        double[] amounts = new double[tickets.size()];
+        int priced = 0;
+        for (int i = 0; i < tickets.size(); i++) {
+            ParkingTicket ticket = tickets.get(i);
+            if (!ticket.beginPayment()) {
+                results[i] = ParkingResult.failure(ticket, "Ticket already paid or being paid.");
+                continue;
+            }
+            try {
+                ticket.closeTicket();
+                double amount = ticket.calculateAmount(pricingStrategy);
+                amounts[priced++] = amount;
+            } catch (RuntimeException e) {
+                ticket.abortPayment();
+                results[i] = ParkingResult.failure(ticket, e.getMessage());
+            }
+        }
+
+        // exits are logged before the charge, as in exit(); one durable wait covers the batch
+        if (journal != null) {
+            long position = 0;
+            for (int i = 0; i < tickets.size(); i++) {
+                if (results[i] == null) {
+                    position = journal.appendExit(tickets.get(i));
+                }
+            }
+            journal.awaitDurable(position);
+        }
+
+        // each ticket settles on its own charge: the paid ones exit, the rest are re-opened
+        String paymentError = "Payment failed.";
+        boolean[] charged;
+        try {
+            charged = paymentStrategy.payAll(Arrays.copyOf(amounts, priced));
+        } catch (RuntimeException e) {
+            charged = new boolean[priced];
+            paymentError = "Payment failed: " + e.getMessage();
+        }
+        boolean[] paid = new boolean[tickets.size()];
+        for (int i = 0, k = 0; i < tickets.size(); i++) {
+            if (results[i] == null) {
+                paid[i] = charged[k++];
+            }
+        }
+
+        if (journal != null) {
+            long position = 0;
+            for (int i = 0; i < tickets.size(); i++) {
+                if (results[i] == null && !paid[i]) {
+                    position = journal.appendEnter(tickets.get(i));
+                }
+            }
+            if (position > 0) {
+                journal.awaitDurable(position);
+            }
+        }
+
+        for (int i = 0; i < tickets.size(); i++) {
+            if (results[i] != null) continue;
+            ParkingTicket ticket = tickets.get(i);
+            if (!paid[i]) {
+                ticket.abortPayment();
+                results[i] = ParkingResult.failure(ticket, paymentError);
+                continue;
+            }
+            vacate(ticket.getSpot(), ticket.getVehicle());
+            ticket.markPaid();
+            ticketRegistry.unregister(ticket);
+            exitGate.openGate();
+            results[i] = ParkingResult.success(ticket);
+        }
+        return Arrays.asList(results);
+    }
+
+}
+
+// public class Main {
+//     public static void main(String[] args) {
+//         // ParkingLot parkingLot = new ParkingLot();
+//         // ParkingFloor floor1 = new ParkingFloor();
+//         // ParkingFloor[] floors = new ParkingFloor[1];
+//         // floors[0] = floor1;
+//         // ParkingSpot[] spots = new ParkingSpot[4];
+//         // spots[0] = new ParkingSpot(VehicleType.CAR);
+//         // spots[1] = new ParkingSpot(VehicleType.MOTORCYCLE);
+//         // spots[2] = new ParkingSpot(VehicleType.TRUCK);
+//         // spots[3] = new ParkingSpot(VehicleType.CAR);
+//         // floor1.addParkingSpots(spots);
+//         // parkingLot.addParkingFloor(floors);
+
+//         ParkingLot parkingLot = ParkingLot.build()
+//         .addFloor(2, 1, 1)   // Floor 1
+//         .addFloor(3, 2, 0)   // Floor 2
+//         .build();
+
+
+//         ParkingService service = new ParkingService(parkingLot,new EntryGate(),new ExitGate());
+
+//         VehicleFactory carFactory = new CarFactory();
+//         Vehicle car = carFactory.createVehicle("MH12AB1234");
+//         ParkingTicket ticket = service.enter(car);
+//         try{
+//             Thread.sleep(9000); 
+//         }catch(InterruptedException e){
+//             e.printStackTrace();
+//         } 
+//         service.exit(ticket,new HourlyRateStrategy(),new CashPayment());
+
+
+
+
+//         VehicleFactory motoVehicleFactory = new MotorcycleFactory();
+//         Vehicle motorcycle = motoVehicleFactory.createVehicle("MH12CD5678");
+
+//         VehicleFactory truckFactory = new TruckFactory();
+//         Vehicle truck = truckFactory.createVehicle("MH12EF9012");
+
+
+//     }
+// }
+
+
+// testing ParkingService class with all testcases
+ // testing ParkingService class with all testcases
+class ParkingLotTester {
+
+    private ParkingService service;
+    private ParkingLot parkingLot;
+    private ManualParkingClock clock;
+
+    public ParkingLotTester() {
+        setup();
+    }
+
+    private void setup() {
+
+        // ✅ Use Builder instead of direct constructor
+        parkingLot = ParkingLot.build()
+                .addFloor(1, 1, 1)   // 1 CAR, 1 MOTORCYCLE, 1 TRUCK
+                .build();
+
+        clock = new ManualParkingClock(System.currentTimeMillis());
+        service = new ParkingService(
+                parkingLot,
+                new EntryGate(),
+                new ExitGate(),
+                new TicketRegistry(),
+                clock
+        );
+    }
+
+    /* =============================
+       TEST CASES
+    ============================== */
+
+    public void runAllTests() {
+        testSuccessfulEntryExit();
+        testNoSpotAvailable();
+        testSpotReleaseAfterExit();
+        testMultipleVehicles();
+        testGateStormNoDoubleAssignment();
+        testHomeFloorWithFallback();
+        testBulkEntryExit();
+        testExitByPlate();
+        testOccupancySnapshot();
+        testCompactFloor();
+        testPricingTableMatchesStrategy();
+        testJournalRecovery();
+        testNearestSpotToGate();
+        testGateSimulator();
+        testAsyncPaymentExit();
+        testReservationHolds();
+        testRepeatedExitKeepsFreeIndexClean();
+        testReservationLifecycle();
+        testSlowTerminalChargedOnce();
+        testJournalCheckpointsWhenFull();
+        testRacingExitsChargeOnce();
+        testJournalTornTail();
+        testAsyncSinkFlushesOnClose();
+    }
+
+    private void printResult(String testName, boolean result) {
+        ParkingEvents.flush();
+        System.out.println(testName + " : " + (result ? "PASS" : "FAIL"));
+        System.out.println("-----------------------------------");
+    }
+
+    /* =============================
+       TEST 1: Successful Entry & Exit
+    ============================== */
+
+    private void testSuccessfulEntryExit() {
+        try {
+            Vehicle car = new Car("TEST123");
+            ParkingTicket ticket = service.enter(car);
+
+            clock.advanceMinutes(90);
+
+            service.exit(ticket,
+                    new HourlyRateStrategy(),
+                    new CashPayment());
+
+            boolean passed =
+                    ticket.getStatus() == Status.PAID &&
+                    ticket.getParkingDuration() == 2 &&
+                    Duration.between(ticket.getEntryTime(), ticket.getExitTime()).toMinutes() == 90;
+            printResult("Test Successful Entry & Exit", passed);
+
+        } catch (Exception e) {
+            printResult("Test Successful Entry & Exit", false);
+        }
+    }
+
+    /* =============================
+       TEST 2: No Spot Available
+    ============================== */
+
+    private void testNoSpotAvailable() {
+        try {
+            Vehicle car1 = new Car("CAR1");
+            Vehicle car2 = new Car("CAR2");
+
+            service.enter(car1);
+
+            // Only 1 car spot exists → second should fail
+            service.enter(car2);
+
+            printResult("Test No Spot Available", false);
+
+        } catch (RuntimeException e) {
+            printResult("Test No Spot Available", true);
+        }
+    }
+
+    /* =============================
+       TEST 3: Spot Release After Exit
+    ============================== */
+
+    private void testSpotReleaseAfterExit() {
+        try {
+            Vehicle truck = new Truck("TRK1");
+            ParkingTicket ticket = service.enter(truck);
+
+            service.exit(ticket,
+                    new HourlyRateStrategy(),
+                    new CashPayment());
+
+            boolean spotAvailable = ticket.getSpot().isAvailable();
+
+            printResult("Test Spot Release After Exit", spotAvailable);
+
+        } catch (Exception e) {
+            printResult("Test Spot Release After Exit", false);
+        }
+    }
+
+    /* =============================
+       TEST 4: Multiple Vehicle Flow
+    ============================== */
+
+    private void testMultipleVehicles() {
+        try {
+            Vehicle moto = new Motorcycle("MOTO1");
+            Vehicle truck = new Truck("TRUCK1");
+
+            ParkingTicket t1 = service.enter(moto);
+            ParkingTicket t2 = service.enter(truck);
+
+            clock.advanceMinutes(25 * 60);
+
+            service.exit(t1,
+                    new HourlyRateStrategy(),
+                    new CashPayment());
+
+            service.exit(t2,
+                    new PremiumRateStrategy(),
+                    new CreditCardPayment());
+
+            boolean passed =
+                    t1.getStatus() == Status.PAID &&
+                    t2.getStatus() == Status.PAID &&
+                    t1.calculateAmount(new HourlyRateStrategy()) == 25.0 &&
+                    t2.calculateAmount(new PremiumRateStrategy()) == 60.0;
+
+            printResult("Test Multiple Vehicles", passed);
+
+        } catch (Exception e) {
+            printResult("Test Multiple Vehicles", false);
+        }
+    }
+
+    /* =============================
+       TEST 5: Concurrent Gates Never Double-Assign
+    ============================== */
+
+    private void testGateStormNoDoubleAssignment() {
+        try {
+            int spots = 20;
+            int gates = 8;
+            int carsPerGate = 10;
+            ParkingService stormService = new ParkingService(
+                    ParkingLot.build().addFloor(spots, 0, 0).build(),
+                    new EntryGate(),
+                    new ExitGate()
+            );
+
+            List<ParkingTicket> tickets = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int g = 0; g < gates; g++) {
+                int gate = g;
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < carsPerGate; i++) {
+                        try {
+                            tickets.add(stormService.enter(new Car("G" + gate + "-" + i)));
+                        } catch (RuntimeException e) {
+                            // lot full
+                        }
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            Set<ParkingSpot> claimed = Collections.newSetFromMap(new IdentityHashMap<>());
+            boolean passed = tickets.size() == spots;
+            for (ParkingTicket ticket : tickets) {
+                passed &= claimed.add(ticket.getSpot());
+            }
+            printResult("Test Gate Storm No Double Assignment", passed);
+
+        } catch (Exception e) {
+            printResult("Test Gate Storm No Double Assignment", false);
+        }
+    }
+
+    /* =============================
+       TEST 6: Home Floor Allocation With Fallback
+    ============================== */
+
+    private void testHomeFloorWithFallback() {
+        try {
+            ParkingLot lot = ParkingLot.build()
+                    .addFloor(1, 0, 0)
+                    .addFloor(1, 0, 0)
+                    .build();
+            ParkingFloor ground = lot.parkingFloors.get(0);
+            ParkingFloor upper = lot.parkingFloors.get(1);
+            EntryGate upperGate = new EntryGate(1);
+            ParkingService shardedService = new ParkingService(lot, new EntryGate(), new ExitGate());
+
+            ParkingTicket t1 = shardedService.enter(new Car("HOME1"), upperGate);
+            ParkingTicket t2 = shardedService.enter(new Car("HOME2"), upperGate);
+
+            boolean passed =
+                    t1.getSpot().getFloor() == upper &&
+                    t2.getSpot().getFloor() == ground;
+
+            printResult("Test Home Floor With Fallback", passed);
+
+        } catch (Exception e) {
+            printResult("Test Home Floor With Fallback", false);
+        }
+    }
+
+    /* =============================
+       TEST 7: Bulk Entry & Exit
+    ============================== */
+
+    private void testBulkEntryExit() {
+        try {
+            ParkingService bulkService = new ParkingService(
+                    ParkingLot.build().addFloor(2, 0, 0).build(),
+                    new EntryGate(),
+                    new ExitGate()
+            );
+
+            List<ParkingResult> entered = bulkService.enterAll(List.of(
+                    new Car("BULK1"), new Car("BULK2"), new Car("BULK3")));
+
+            List<ParkingTicket> tickets = new ArrayList<>();
+            for (ParkingResult result : entered) {
+                if (result.isSuccess()) tickets.add(result.getTicket());
+            }
+            List<ParkingResult> exited = bulkService.exitAll(tickets,
+                    new HourlyRateStrategy(),
+                    new CashPayment());
+
+            // the second card of three is declined: only that ticket stays, and a retry charges it alone
+            ParkingService partialService = new ParkingService(
+                    ParkingLot.build().addFloor(3, 0, 0).build(),
+                    new EntryGate(),
+                    new ExitGate()
+            );
+            List<ParkingTicket> batch = new ArrayList<>();
+            for (ParkingResult result : partialService.enterAll(List.of(
+                    new Car("PART1"), new Car("PART2"), new Car("PART3")))) {
+                batch.add(result.getTicket());
+            }
+            AtomicInteger calls = new AtomicInteger();
+            AtomicInteger charged = new AtomicInteger();
+            PaymentStrategy declinesSecond = amount -> {
+                if (calls.incrementAndGet() == 2) {
+                    throw new IllegalStateException("card declined");
+                }
+                charged.incrementAndGet();
+            };
+            List<ParkingResult> partial = partialService.exitAll(batch, new HourlyRateStrategy(), declinesSecond);
+            boolean declinedStillParked = batch.get(1).getStatus() == Status.ACTIVE;
+            List<ParkingResult> retried = partialService.exitAll(batch, new HourlyRateStrategy(), declinesSecond);
+
+            boolean passed =
+                    partial.get(0).isSuccess() &&
+                    !partial.get(1).isSuccess() &&
+                    partial.get(2).isSuccess() &&
+                    declinedStillParked &&
+                    !retried.get(0).isSuccess() &&
+                    retried.get(1).isSuccess() &&
+                    !retried.get(2).isSuccess() &&
+                    charged.get() == 3 &&
+                    partialService.getTicketRegistry().size() == 0 &&
+                    entered.get(0).isSuccess() &&
+                    entered.get(1).isSuccess() &&
+                    !entered.get(2).isSuccess() &&
+                    exited.size() == 2 &&
+                    exited.get(0).isSuccess() &&
+                    exited.get(1).isSuccess() &&
+                    tickets.get(0).getStatus() == Status.PAID &&
+                    tickets.get(0).getSpot().isAvailable();
+
+            printResult("Test Bulk Entry & Exit", passed);
+
+        } catch (Exception e) {
+            printResult("Test Bulk Entry & Exit", false);
+        }
+    }
+
+    /* =============================
+       TEST 8: Exit By Scanned Plate
+    ============================== */
+
+    private void testExitByPlate() {
+        try {
+            ParkingService plateService = new ParkingService(
+                    ParkingLot.build().addFloor(2, 0, 0).build(),
+                    new EntryGate(),
+                    new ExitGate()
+            );
+            TicketRegistry registry = plateService.getTicketRegistry();
+
+            ParkingTicket ticket = plateService.enter(new Car("PLATE1"));
+            boolean duplicateRejected = false;
+            try {
+                plateService.enter(new Car("PLATE1"));
+            } catch (RuntimeException e) {
+                duplicateRejected = true;
+            }
+            boolean indexed = registry.findById(ticket.getTicketId()) == ticket
+                    && registry.findByPlate("PLATE1") == ticket;
+
+            ParkingTicket exited = plateService.exit("PLATE1",
+                    new HourlyRateStrategy(),
+                    new CashPayment());
+
+            boolean passed =
+                    duplicateRejected &&
+                    indexed &&
+                    exited == ticket &&
+                    ticket.getStatus() == Status.PAID &&
+                    registry.size() == 0 &&
+                    registry.findByPlate("PLATE1") == null;
+
+            printResult("Test Exit By Plate", passed);
+
+        } catch (Exception e) {
+            printResult("Test Exit By Plate", false);
+        }
+    }
+
+    /* =============================
+       TEST 9: Occupancy Snapshot
+    ============================== */
+
+    private void testOccupancySnapshot() {
+        try {
+            ParkingLot lot = ParkingLot.build()
+                    .addFloor(2, 1, 0)
+                    .addFloor(1, 0, 1)
+                    .build();
+            ParkingService occupancyService = new ParkingService(lot, new EntryGate(), new ExitGate());
+
+            ParkingTicket car = occupancyService.enter(new Car("OCC1"));
+            occupancyService.enter(new Truck("OCC2"));
+            OccupancySnapshot busy = lot.getOccupancySnapshot();
+
+            occupancyService.exit(car, new HourlyRateStrategy(), new CashPayment());
+            OccupancySnapshot after = lot.getOccupancySnapshot();
+
+            boolean passed =
+                    busy.getFloorCount() == 2 &&
+                    busy.getOccupied(0, VehicleType.CAR) == 1 &&
+                    busy.getFree(0, VehicleType.CAR) == 1 &&
+                    busy.getOccupied(1, VehicleType.TRUCK) == 1 &&
+                    busy.getCapacity(0, VehicleType.MOTORCYCLE) == 1 &&
+                    after.getTotalOccupied(VehicleType.CAR) == 0 &&
+                    after.getTotalOccupied(VehicleType.TRUCK) == 1;
+
+            printResult("Test Occupancy Snapshot", passed);
+
+        } catch (Exception e) {
+            printResult("Test Occupancy Snapshot", false);
+        }
+    }
+
+    /* =============================
+       TEST 10: Compact Floor Allocation
+    ============================== */
+
+    private void testCompactFloor() {
+        try {
+            ParkingLot lot = ParkingLot.build()
+                    .addCompactFloor(130, 1, 0)
+                    .build();
+            CompactParkingFloor floor = (CompactParkingFloor) lot.parkingFloors.get(0);
+            ParkingService compactService = new ParkingService(lot, new EntryGate(), new ExitGate());
+
+            List<ParkingTicket> tickets = new ArrayList<>();
+            for (int i = 0; i < 130; i++) {
+                tickets.add(compactService.enter(new Car("CMP" + i)));
+            }
+            boolean full = false;
+            try {
+                compactService.enter(new Car("CMP-EXTRA"));
+            } catch (RuntimeException e) {
+                full = true;
+            }
+            ParkingTicket bike = compactService.enter(new Motorcycle("CMP-BIKE"));
+
+            ParkingTicket released = tickets.get(70);
+            int index = ((CompactParkingSpot) released.getSpot()).getIndex();
+            compactService.exit(released, new HourlyRateStrategy(), new CashPayment());
+            boolean freed = !floor.isOccupied(index);
+            ParkingTicket reused = compactService.enter(new Car("CMP-REUSE"));
+            // the first car's view is stale now; releasing it again must leave the reused slot taken
+            lot.releaseSpot(released.getSpot());
+            boolean staleReleaseIgnored = floor.isOccupied(index);
+            // the floor's table knows who is parked where; the stale view no longer sees anyone
+            boolean tableReports =
+                    floor.getVehicle(index) == reused.getVehicle() &&
+                    reused.getSpot().getParkedVehicle() == reused.getVehicle() &&
+                    released.getSpot().getParkedVehicle() == null &&
+                    !released.getSpot().assignVehicle(new Car("CMP-STALE"));
+
+            boolean passed =
+                    full &&
+                    freed &&
+                    staleReleaseIgnored &&
+                    tableReports &&
+                    ((CompactParkingSpot) reused.getSpot()).getIndex() == index &&
+                    floor.getSpotType(((CompactParkingSpot) bike.getSpot()).getIndex()) == VehicleType.MOTORCYCLE &&
+                    lot.getOccupancySnapshot().getOccupied(0, VehicleType.CAR) == 130;
+
+            printResult("Test Compact Floor", passed);
+
+        } catch (Exception e) {
+            printResult("Test Compact Floor", false);
+        }
+    }
+
+    /* =============================
+       TEST 11: Pricing Table Matches Strategy
+    ============================== */
+
+    private void testPricingTableMatchesStrategy() {
+        try {
+            PricingStrategy[] strategies = { new HourlyRateStrategy(), new PremiumRateStrategy() };
+            Vehicle[] vehicles = { new Car("PT1"), new Motorcycle("PT2"), new Truck("PT3") };
+            boolean passed = true;
+            for (PricingStrategy strategy : strategies) {
+                PricingTable table = PricingTable.compile(strategy, 24 * 7);
+                for (Vehicle vehicle : vehicles) {
+                    for (int hours = 1; hours <= 24 * 8; hours++) {
+                        passed &= table.calculatePrice(vehicle, hours) == strategy.calculatePrice(vehicle, hours);
+                    }
+                }
+            }
+            printResult("Test Pricing Table Matches Strategy", passed);
+
+        } catch (Exception e) {
+            printResult("Test Pricing Table Matches Strategy", false);
+        }
+    }
+
+    /* =============================
+       TEST 12: Journal Crash Recovery
+    ============================== */
+
+    private void testJournalRecovery() {
+        Path file = null;
+        try {
+            file = Files.createTempFile("parking-journal", ".log");
+            ParkingTicket open;
+            ParkingTicket closed;
+            try (ParkingJournal journal = new ParkingJournal(file, 1 << 20, 2)) {
+                ParkingService before = new ParkingService(
+                        ParkingLot.build().addFloor(2, 1, 0).addCompactFloor(0, 0, 2).build(),
+                        new EntryGate(), new ExitGate(), new TicketRegistry(), ParkingClock.SYSTEM, journal);
+                closed = before.enter(new Car("JRN1"));
+                open = before.enter(new Truck("JRN2"));
+                before.exit(closed, new HourlyRateStrategy(), new CashPayment());
+            }
+
+            // a fresh process: same layout, empty lot, journal reopened from disk
+            ParkingLot lot = ParkingLot.build().addFloor(2, 1, 0).addCompactFloor(0, 0, 2).build();
+            try (ParkingJournal journal = new ParkingJournal(file, 1 << 20, 2)) {
+                ParkingService after = new ParkingService(lot, new EntryGate(), new ExitGate(),
+                        new TicketRegistry(), ParkingClock.SYSTEM, journal);
+                int restored = after.recover();
+                ParkingTicket recovered = after.getTicketRegistry().findByPlate("JRN2");
+                ParkingTicket next = after.enter(new Truck("JRN3"));
+
+                boolean passed =
+                        restored == 1 &&
+                        recovered != null &&
+                        recovered.getTicketId() == open.getTicketId() &&
+                        recovered.getEntryEpochMillis() == open.getEntryEpochMillis() &&
+                        recovered.getSpot().getIndex() == open.getSpot().getIndex() &&
+                        after.getTicketRegistry().findByPlate("JRN1") == null &&
+                        next.getTicketId() > open.getTicketId() &&
+                        next.getSpot().getIndex() != recovered.getSpot().getIndex() &&
+                        lot.getOccupancySnapshot().getTotalOccupied(VehicleType.CAR) == 0;
+
+                printResult("Test Journal Recovery", passed);
+            }
+
+        } catch (Exception e) {
+            printResult("Test Journal Recovery", false);
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    // temp file, nothing to do
+                }
+            }
+        }
+    }
+
+    /* =============================
+       TEST 13: Nearest Spot To Gate
+    ============================== */
+
+    private void testNearestSpotToGate() {
+        try {
+            EntryGate north = new EntryGate();
+            EntryGate south = new EntryGate();
+            ParkingLot lot = ParkingLot.build()
+                    .addFloor(3, 0, 0)
+                    .addFloor(3, 0, 0)
+                    // north gate sits at the start of the ground floor, south at the far end of the upper floor
+                    .addGate(north, spot -> spot.getFloor().getLevel() * 100 + spot.getIndex())
+                    .addGate(south, spot -> (1 - spot.getFloor().getLevel()) * 100 + (2 - spot.getIndex()))
+                    .build();
+            ParkingService gateService = new ParkingService(lot, north, new ExitGate());
+
+            ParkingTicket n1 = gateService.enter(new Car("NEAR1"), north);
+            ParkingTicket s1 = gateService.enter(new Car("NEAR2"), south);
+            ParkingTicket n2 = gateService.enter(new Car("NEAR3"), north);
+            gateService.exit(n1, new HourlyRateStrategy(), new CashPayment());
+            ParkingTicket n3 = gateService.enter(new Car("NEAR4"), north);
+
+            // every allocation entry point must draw from the same nearest-gate index; the floor
+            // queues are not kept in sync with it and would hand out spots a second time
+            Set<ParkingSpot> handedOut = Collections.newSetFromMap(new IdentityHashMap<>());
+            handedOut.add(n2.getSpot());
+            handedOut.add(n3.getSpot());
+            handedOut.add(s1.getSpot());
+            ParkingSpot byType = lot.findAvailableSpot(VehicleType.CAR);
+            ParkingSpot byFloor = lot.findAvailableSpot(VehicleType.CAR, 1);
+            ParkingSpot byGate = lot.findAvailableSpot(VehicleType.CAR, south);
+            boolean distinct = byType != null && byFloor != null && byGate != null &&
+                    handedOut.add(byType) && handedOut.add(byFloor) && handedOut.add(byGate) &&
+                    lot.findAvailableSpot(VehicleType.CAR) == null &&
+                    lot.findAvailableSpot(VehicleType.CAR, 0) == null;
+
+            boolean passed =
+                    distinct &&
+                    n1.getSpot().getFloor().getLevel() == 0 && n1.getSpot().getIndex() == 0 &&
+                    s1.getSpot().getFloor().getLevel() == 1 && s1.getSpot().getIndex() == 2 &&
+                    n2.getSpot().getIndex() == 1 &&
+                    n3.getSpot() == n1.getSpot();
+
+            printResult("Test Nearest Spot To Gate", passed);
+
+        } catch (Exception e) {
+            printResult("Test Nearest Spot To Gate", false);
+        }
+    }
+
+    /* =============================
+       TEST 14: Gate Simulator Replays Trace
+    ============================== */
+
+    private void testGateSimulator() {
+        ParkingEventSink original = ParkingEvents.getSink();
+        try {
+            ParkingEvents.setSink(new NoOpEventSink());
+            ParkingService simService = new ParkingService(
+                    ParkingLot.build().addFloor(40, 40, 40).build(),
+                    new EntryGate(),
+                    new ExitGate()
+            );
+            GateSimulator simulator = new GateSimulator(simService, List.of(new EntryGate()),
+                    new HourlyRateStrategy(), new CashPayment(), 1000);
+            List<GateSimulator.Arrival> trace = GateSimulator.randomTrace(300, 10, 100, 7);
+            SimulationReport report = simulator.run(trace, 0.1);
+
+            boolean passed =
+                    report.getServed() == 300 &&
+                    report.getTurnedAway() == 0 &&
+                    report.getEnterPercentile(0.5) <= report.getEnterPercentile(0.99) &&
+                    simService.getTicketRegistry().size() == 0;
+
+            ParkingEvents.setSink(original);
+            printResult("Test Gate Simulator", passed);
+
+        } catch (Exception e) {
+            ParkingEvents.setSink(original);
+            printResult("Test Gate Simulator", false);
+        }
+    }
+
+    /* =============================
+       TEST 15: Asynchronous Payment Exit
+    ============================== */
+
+    private void testAsyncPaymentExit() {
+        try (AsyncPaymentStage stage = new AsyncPaymentStage(2, 1, 50, 1)) {
+            ParkingService asyncService = new ParkingService(
+                    ParkingLot.build().addFloor(3, 0, 0).build(),
+                    new EntryGate(),
+                    new ExitGate()
+            );
+
+            // fails once, then succeeds on the retry
+            AtomicInteger flakyCalls = new AtomicInteger();
+            PaymentStrategy flaky = amount -> {
+                if (flakyCalls.getAndIncrement() == 0) {
+                    throw new IllegalStateException("terminal offline");
+                }
+            };
+            ParkingTicket retried = asyncService.enter(new Car("ASYNC1"));
+            ParkingTicket paid = asyncService.exitAsync(retried, new HourlyRateStrategy(), flaky, stage)
+                    .get(1, TimeUnit.SECONDS);
+
+            // never answers within the timeout, on either attempt
+            CountDownLatch hung = new CountDownLatch(1);
+            PaymentStrategy slow = amount -> {
+                try {
+                    hung.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("charge aborted");
+                }
+            };
+            ParkingTicket timedOut = asyncService.enter(new Car("ASYNC2"));
+            CompletableFuture<ParkingTicket> slowExit =
+                    asyncService.exitAsync(timedOut, new HourlyRateStrategy(), slow, stage);
+
+            // the single in-flight slot is taken by the slow payment
+            ParkingTicket rejected = asyncService.enter(new Car("ASYNC3"));
+            boolean rejectedFast = asyncService.exitAsync(rejected, new HourlyRateStrategy(), new CashPayment(), stage)
+                    .isCompletedExceptionally();
+
+            boolean timeoutFailed = false;
+            try {
+                slowExit.get(1, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                timeoutFailed = true;
+            }
+            hung.countDown();
+
+            boolean passed =
+                    paid.getStatus() == Status.PAID &&
+                    paid.getSpot().isAvailable() &&
+                    flakyCalls.get() == 2 &&
+                    rejectedFast &&
+                    timeoutFailed &&
+                    timedOut.getStatus() == Status.ACTIVE &&
+                    !timedOut.getSpot().isAvailable();
+
+            printResult("Test Async Payment Exit", passed);
+
+        } catch (Exception e) {
+            printResult("Test Async Payment Exit", false);
+        }
+    }
+
+    /* =============================
+       TEST 16: Reservations Hold Spots
+    ============================== */
+
+    private void testReservationHolds() {
+        try {
+            long hour = 60 * 60 * 1000L;
+            ManualParkingClock bookingClock = new ManualParkingClock(System.currentTimeMillis() / hour * hour);
+            ParkingLot lot = ParkingLot.build()
+                    .addFloor(2, 0, 0)
+                    .withReservations(bookingClock, 15 * 60 * 1000L, 4 * 24 * 7)
+                    .build();
+            ReservationIndex reservations = lot.getReservationIndex();
+            ParkingService bookingService = new ParkingService(lot, new EntryGate(), new ExitGate(),
+                    new TicketRegistry(), bookingClock);
+            long now = bookingClock.currentTimeMillis();
+
+            SpotReservation booked = reservations.reserve("RES1", VehicleType.CAR, now + hour, now + 3 * hour);
+            SpotReservation second = reservations.reserve("RES2", VehicleType.CAR, now + 2 * hour, now + 4 * hour);
+            SpotReservation overbooked = reservations.reserve("RES3", VehicleType.CAR, now + 2 * hour, now + 3 * hour);
+            boolean capacityQueries =
+                    reservations.availableCapacity(VehicleType.CAR, now, now + hour) == 2 &&
+                    reservations.availableCapacity(VehicleType.CAR, now + 2 * hour, now + 3 * hour) == 0;
+
+            // both spots are promised two hours from now and a walk-in may stay that long
+            boolean earlyWalkInRejected = false;
+            try {
+                bookingService.enter(new Car("WALK1"));
+            } catch (RuntimeException e) {
+                earlyWalkInRejected = true;
+            }
+
+            reservations.cancel(second);
+            boolean cancelled = reservations.availableCapacity(VehicleType.CAR, now + 3 * hour, now + 4 * hour) == 2;
+            bookingService.enter(new Car("WALK1"));
+            boolean walkInCounted = reservations.availableCapacity(VehicleType.CAR, now + 3 * hour, now + 4 * hour) == 1;
+            bookingClock.advanceMinutes(60);
+
+            // one spot left and it is held for RES1
+            boolean walkInRejected = false;
+            try {
+                bookingService.enter(new Car("WALK2"));
+            } catch (RuntimeException e) {
+                walkInRejected = true;
+            }
+            ParkingTicket arrived = bookingService.enter(new Car("RES1"));
+            boolean heldWhileParked = reservations.unclaimedHoldsNow(VehicleType.CAR) == 0 &&
+                    reservations.availableCapacity(VehicleType.CAR, now + hour, now + 2 * hour) == 0;
+            bookingService.exit(arrived, new HourlyRateStrategy(), new CashPayment());
+
+            boolean passed =
+                    booked != null &&
+                    second != null &&
+                    overbooked == null &&
+                    capacityQueries &&
+                    earlyWalkInRejected &&
+                    cancelled &&
+                    walkInCounted &&
+                    walkInRejected &&
+                    arrived != null &&
+                    heldWhileParked &&
+                    reservations.availableCapacity(VehicleType.CAR, now + hour, now + 2 * hour) == 1;
+
+            printResult("Test Reservation Holds", passed);
+
+        } catch (Exception e) {
+            printResult("Test Reservation Holds", false);
+        }
+    }
 
-//     }
-// }
+    /* =============================
+       TEST 17: Repeated Exit Keeps Free Index Clean
+    ============================== */
 
+    private void testRepeatedExitKeepsFreeIndexClean() {
+        try {
+            ParkingLot lot = ParkingLot.build().addFloor(2, 0, 0).build();
+            ParkingService repeatService = new ParkingService(lot, new EntryGate(), new ExitGate());
 
-// testing ParkingService class with all testcases
- // testing ParkingService class with all testcases
-class ParkingLotTester {
+            ParkingTicket first = repeatService.enter(new Car("D1"));
+            repeatService.exit(first, new HourlyRateStrategy(), new CashPayment());
+            boolean secondExitRejected = false;
+            try {
+                repeatService.exit(first, new HourlyRateStrategy(), new CashPayment());
+            } catch (IllegalStateException e) {
+                secondExitRejected = true;
+            }
 
-    private ParkingService service;
-    private ParkingLot parkingLot;
+            ParkingTicket d2 = repeatService.enter(new Car("D2"));
+            repeatService.enter(new Car("D3"));
+            boolean fullRejected = false;
+            try {
+                repeatService.enter(new Car("D4"));
+            } catch (RuntimeException e) {
+                fullRejected = true;
+            }
+            repeatService.exit(d2, new HourlyRateStrategy(), new CashPayment());
+            ParkingTicket d5 = repeatService.enter(new Car("D5"));
 
-    public ParkingLotTester() {
-        setup();
+            boolean passed =
+                    secondExitRejected &&
+                    fullRejected &&
+                    d5 != null &&
+                    lot.getOccupancySnapshot().getOccupied(0, VehicleType.CAR) == 2 &&
+                    lot.findAvailableSpot(VehicleType.CAR) == null;
+
+            printResult("Test Repeated Exit Keeps Free Index Clean", passed);
+
+        } catch (Exception e) {
+            printResult("Test Repeated Exit Keeps Free Index Clean", false);
+        }
     }
 
-    private void setup() {
+    /* =============================
+       TEST 18: Reservation Lifecycle Past The Horizon
+    ============================== */
 
-        // ✅ Use Builder instead of direct constructor
-        parkingLot = ParkingLot.build()
-                .addFloor(1, 1, 1)   // 1 CAR, 1 MOTORCYCLE, 1 TRUCK
-                .build();
+    private void testReservationLifecycle() {
+        try {
+            long quarter = 15 * 60 * 1000L;
+            long hour = 4 * quarter;
+            ManualParkingClock bookingClock = new ManualParkingClock(System.currentTimeMillis() / hour * hour);
+            ParkingLot lot = ParkingLot.build()
+                    .addFloor(1, 0, 0)
+                    .withReservations(bookingClock, quarter, 8)
+                    .build();
+            ReservationIndex reservations = lot.getReservationIndex();
+            ParkingService bookingService = new ParkingService(lot, new EntryGate(), new ExitGate(),
+                    new TicketRegistry(), bookingClock);
+            long now = bookingClock.currentTimeMillis();
 
-        service = new ParkingService(
-                parkingLot,
-                new EntryGate(),
-                new ExitGate()
-        );
+            // the only spot is booked for later, so a walk-in cannot take it now and block the booking
+            reservations.reserve("LATE", VehicleType.CAR, now + hour, now + 2 * hour);
+            boolean walkInRejected = false;
+            try {
+                bookingService.enter(new Car("EARLY"));
+            } catch (RuntimeException e) {
+                walkInRejected = true;
+            }
+            bookingClock.advanceMinutes(60);
+            // the confirmed booking is always let in
+            ParkingTicket late = bookingService.enter(new Car("LATE"));
+            bookingService.exit(late, new HourlyRateStrategy(), new CashPayment());
+
+            // with a walk-in parked in the only spot, a booking is refused up front
+            ParkingTicket walkIn = bookingService.enter(new Car("EARLY"));
+            SpotReservation blocked = reservations.reserve("BLOCKED", VehicleType.CAR,
+                    bookingClock.currentTimeMillis() + quarter, bookingClock.currentTimeMillis() + hour);
+            bookingService.exit(walkIn, new HourlyRateStrategy(), new CashPayment());
+
+            // nobody claims this one; once it lapses the plate can book again
+            reservations.reserve("NOSHOW", VehicleType.CAR, now + hour + quarter, now + 90 * 60 * 1000L);
+            bookingClock.advanceMinutes(60);
+            SpotReservation rebooked = reservations.reserve("NOSHOW", VehicleType.CAR,
+                    bookingClock.currentTimeMillis(), bookingClock.currentTimeMillis() + hour);
+            reservations.cancel(rebooked);
+
+            // three hours on, far past the eight buckets the lot was built with
+            bookingClock.advanceMinutes(180);
+            ParkingTicket afterHorizon = bookingService.enter(new Car("LATER"));
+            bookingService.exit(afterHorizon, new HourlyRateStrategy(), new CashPayment());
+            long later = bookingClock.currentTimeMillis();
+            SpotReservation rolled = reservations.reserve("ROLL", VehicleType.CAR, later + hour, later + 2 * hour);
+
+            boolean passed =
+                    walkInRejected &&
+                    late != null &&
+                    blocked == null &&
+                    rebooked != null &&
+                    afterHorizon != null &&
+                    rolled != null &&
+                    reservations.availableCapacity(VehicleType.CAR, later + hour, later + 2 * hour) == 0;
+
+            printResult("Test Reservation Lifecycle", passed);
+
+        } catch (Exception e) {
+            printResult("Test Reservation Lifecycle", false);
+        }
     }
 
     /* =============================
-       TEST CASES
+       TEST 19: Slow Terminal Is Charged At Most Once
     ============================== */
 
-    public void runAllTests() {
-        testSuccessfulEntryExit();
-        testNoSpotAvailable();
-        testSpotReleaseAfterExit();
-        testMultipleVehicles();
-    }
+    private void testSlowTerminalChargedOnce() {
+        try (AsyncPaymentStage stage = new AsyncPaymentStage(2, 4, 50, 1)) {
+            ParkingService asyncService = new ParkingService(
+                    ParkingLot.build().addFloor(4, 0, 0).build(),
+                    new EntryGate(),
+                    new ExitGate()
+            );
 
-    private void printResult(String testName, boolean result) {
-        System.out.println(testName + " : " + (result ? "PASS" : "FAIL"));
-        System.out.println("-----------------------------------");
+            // 80 ms terminal that aborts the charge when interrupted: both attempts time out,
+            // nothing is charged and the car keeps its spot
+            AtomicInteger abortingCharges = new AtomicInteger();
+            PaymentStrategy aborting = amount -> {
+                try {
+                    Thread.sleep(80);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("charge aborted");
+                }
+                abortingCharges.incrementAndGet();
+            };
+            ParkingTicket aborted = asyncService.enter(new Car("SLOW1"));
+            boolean abortedFailed = false;
+            try {
+                asyncService.exitAsync(aborted, new HourlyRateStrategy(), aborting, stage).get(1, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                abortedFailed = e.getCause() instanceof TimeoutException;
+            }
+
+            // 80 ms terminal that ignores interrupts: the late charge counts, and is not repeated
+            AtomicInteger stubbornCharges = new AtomicInteger();
+            PaymentStrategy stubborn = amount -> {
+                long until = System.nanoTime() + 80_000_000L;
+                while (System.nanoTime() < until) {
+                    Thread.onSpinWait();
+                }
+                stubbornCharges.incrementAndGet();
+            };
+            ParkingTicket late = asyncService.enter(new Car("SLOW2"));
+            ParkingTicket latePaid = asyncService.exitAsync(late, new HourlyRateStrategy(), stubborn, stage)
+                    .get(1, TimeUnit.SECONDS);
+
+            // one worker, two 30 ms payments: the second waits 30 ms in the queue, which must not
+            // count against its 50 ms
+            try (AsyncPaymentStage single = new AsyncPaymentStage(1, 2, 50, 0)) {
+                PaymentStrategy thirty = amount -> {
+                    try {
+                        Thread.sleep(30);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("charge aborted");
+                    }
+                };
+                CompletableFuture<Void> first = single.submit(1.0, thirty);
+                CompletableFuture<Void> second = single.submit(1.0, thirty);
+                CompletableFuture.allOf(first, second).get(1, TimeUnit.SECONDS);
+            }
+
+            boolean passed =
+                    abortedFailed &&
+                    abortingCharges.get() == 0 &&
+                    aborted.getStatus() == Status.ACTIVE &&
+                    !aborted.getSpot().isAvailable() &&
+                    latePaid.getStatus() == Status.PAID &&
+                    stubbornCharges.get() == 1 &&
+                    stage.getAvailableSlots() == 4;
+
+            printResult("Test Slow Terminal Charged Once", passed);
+
+        } catch (Exception e) {
+            printResult("Test Slow Terminal Charged Once", false);
+        }
     }
 
     /* =============================
-       TEST 1: Successful Entry & Exit
+       TEST 20: Journal Checkpoints When Full
     ============================== */
 
-    private void testSuccessfulEntryExit() {
+    private void testJournalCheckpointsWhenFull() {
+        Path file = null;
         try {
-            Vehicle car = new Car("TEST123");
-            ParkingTicket ticket = service.enter(car);
+            file = Files.createTempFile("parking-journal-checkpoint", ".log");
+            List<ParkingTicket> parked = new ArrayList<>();
+            int lastTicketId = 0;
+            int checkpoints;
+            // 4 KB holds roughly 80 events; a day's churn is many times that
+            try (ParkingJournal journal = new ParkingJournal(file, 4096, 2)) {
+                ParkingService before = new ParkingService(ParkingLot.build().addFloor(4, 0, 0).build(),
+                        new EntryGate(), new ExitGate(), new TicketRegistry(), ParkingClock.SYSTEM, journal);
+                for (int i = 0; i < 3; i++) {
+                    parked.add(before.enter(new Car("STAY" + i)));
+                }
+                for (int i = 0; i < 300; i++) {
+                    ParkingTicket visit = before.enter(new Car("VISIT" + i));
+                    before.exit(visit, new HourlyRateStrategy(), new CashPayment());
+                    lastTicketId = visit.getTicketId();
+                }
+                checkpoints = journal.getCheckpointCount();
+            }
 
-            Thread.sleep(2000);
+            try (ParkingJournal journal = new ParkingJournal(file, 4096, 2)) {
+                ParkingService after = new ParkingService(ParkingLot.build().addFloor(4, 0, 0).build(),
+                        new EntryGate(), new ExitGate(), new TicketRegistry(), ParkingClock.SYSTEM, journal);
+                int restored = after.recover();
+                ParkingTicket next = after.enter(new Car("NEXT"));
 
-            service.exit(ticket,
-                    new HourlyRateStrategy(),
-                    new CashPayment());
+                boolean passed =
+                        checkpoints > 0 &&
+                        restored == 3 &&
+                        after.getTicketRegistry().findByPlate("STAY0").getTicketId() == parked.get(0).getTicketId() &&
+                        after.getTicketRegistry().findByPlate("VISIT299") == null &&
+                        next.getTicketId() > lastTicketId;
 
-            boolean passed = ticket.getStatus() == Status.PAID;
-            printResult("Test Successful Entry & Exit", passed);
+                printResult("Test Journal Checkpoints When Full", passed);
+            }
 
         } catch (Exception e) {
-            printResult("Test Successful Entry & Exit", false);
+            printResult("Test Journal Checkpoints When Full", false);
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                    Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".checkpoint"));
+                } catch (IOException e) {
+                    // temp file, nothing to do
+                }
+            }
         }
     }
 
     /* =============================
-       TEST 2: No Spot Available
+       TEST 21: Racing Exits Charge Once
     ============================== */
 
-    private void testNoSpotAvailable() {
-        try {
-            Vehicle car1 = new Car("CAR1");
-            Vehicle car2 = new Car("CAR2");
+    private void testRacingExitsChargeOnce() {
+        try (AsyncPaymentStage stage = new AsyncPaymentStage(2, 4, 1000, 0)) {
+            ParkingService raceService = new ParkingService(
+                    ParkingLot.build().addFloor(2, 0, 0).build(),
+                    new EntryGate(),
+                    new ExitGate()
+            );
 
-            service.enter(car1);
+            // the first charge blocks until released, so every other exit arrives mid-payment
+            AtomicInteger charges = new AtomicInteger();
+            CountDownLatch release = new CountDownLatch(1);
+            PaymentStrategy held = amount -> {
+                charges.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("charge aborted");
+                }
+            };
+            ParkingTicket ticket = raceService.enter(new Car("RACE1"));
+            CompletableFuture<ParkingTicket> first = raceService.exitAsync(ticket, new HourlyRateStrategy(), held, stage);
+            boolean secondRefused = raceService.exitAsync(ticket, new HourlyRateStrategy(), held, stage)
+                    .isCompletedExceptionally();
+            boolean laneRefused = false;
+            try {
+                raceService.exit("RACE1", new HourlyRateStrategy(), held);
+            } catch (IllegalStateException e) {
+                laneRefused = true;
+            }
+            release.countDown();
+            first.get(1, TimeUnit.SECONDS);
 
-            // Only 1 car spot exists → second should fail
-            service.enter(car2);
+            // a failed payment hands the ticket back for another try
+            ParkingTicket retried = raceService.enter(new Car("RACE2"));
+            boolean failed = false;
+            try {
+                raceService.exit(retried, new HourlyRateStrategy(), amount -> {
+                    throw new IllegalStateException("card declined");
+                });
+            } catch (IllegalStateException e) {
+                failed = true;
+            }
+            boolean reopened = retried.getStatus() == Status.ACTIVE;
+            raceService.exit(retried, new HourlyRateStrategy(), new CashPayment());
 
-            printResult("Test No Spot Available", false);
+            boolean passed =
+                    secondRefused &&
+                    laneRefused &&
+                    charges.get() == 1 &&
+                    ticket.getStatus() == Status.PAID &&
+                    ticket.getSpot().isAvailable() &&
+                    failed &&
+                    reopened &&
+                    retried.getStatus() == Status.PAID;
 
-        } catch (RuntimeException e) {
-            printResult("Test No Spot Available", true);
+            printResult("Test Racing Exits Charge Once", passed);
+
+        } catch (Exception e) {
+            printResult("Test Racing Exits Charge Once", false);
         }
     }
 
     /* =============================
-       TEST 3: Spot Release After Exit
+       TEST 22: Journal Torn Tail
     ============================== */
 
-    private void testSpotReleaseAfterExit() {
+    private void testJournalTornTail() {
+        Path file = null;
         try {
-            Vehicle truck = new Truck("TRK1");
-            ParkingTicket ticket = service.enter(truck);
+            file = Files.createTempFile("parking-journal-torn", ".log");
+            ParkingTicket parked;
+            try (ParkingJournal journal = new ParkingJournal(file, 1 << 16, 2)) {
+                ParkingService before = new ParkingService(ParkingLot.build().addFloor(3, 0, 0).build(),
+                        new EntryGate(), new ExitGate(), new TicketRegistry(), ParkingClock.SYSTEM, journal);
+                ParkingTicket declined = before.enter(new Car("TORN1"));
+                parked = before.enter(new Car("TORN2"));
+                // the EXIT is logged before the charge; the declined card re-opens the ticket
+                try {
+                    before.exit(declined, new HourlyRateStrategy(), amount -> {
+                        throw new IllegalStateException("card declined");
+                    });
+                } catch (IllegalStateException e) {
+                    // expected
+                }
+            }
 
-            service.exit(ticket,
-                    new HourlyRateStrategy(),
-                    new CashPayment());
+            // a crash mid-append: an ENTER header pointing at TORN2's spot, body never written
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, 1 << 16);
+                int end = 0;
+                while (mapped.getInt(end) != 0) {
+                    end += mapped.getInt(end);
+                }
+                mapped.putInt(end, 40);
+                mapped.put(end + 8, (byte) 1);
+                mapped.putInt(end + 9, 99);
+                mapped.putInt(end + 13, 0);
+                mapped.putInt(end + 17, parked.getSpot().getIndex());
+                mapped.force();
+            }
 
-            boolean spotAvailable = ticket.getSpot().isAvailable();
+            int restored;
+            try (ParkingJournal journal = new ParkingJournal(file, 1 << 16, 2)) {
+                ParkingService after = new ParkingService(ParkingLot.build().addFloor(3, 0, 0).build(),
+                        new EntryGate(), new ExitGate(), new TicketRegistry(), ParkingClock.SYSTEM, journal);
+                restored = after.recover();
+                after.enter(new Car("TORN3"));
+            }
 
-            printResult("Test Spot Release After Exit", spotAvailable);
+            // appends after the torn tail survive the next restart
+            int restoredAgain;
+            try (ParkingJournal journal = new ParkingJournal(file, 1 << 16, 2)) {
+                ParkingService again = new ParkingService(ParkingLot.build().addFloor(3, 0, 0).build(),
+                        new EntryGate(), new ExitGate(), new TicketRegistry(), ParkingClock.SYSTEM, journal);
+                restoredAgain = again.recover();
+            }
+
+            boolean passed =
+                    restored == 2 &&
+                    restoredAgain == 3;
+
+            printResult("Test Journal Torn Tail", passed);
 
         } catch (Exception e) {
-            printResult("Test Spot Release After Exit", false);
+            printResult("Test Journal Torn Tail", false);
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    // temp file, nothing to do
+                }
+            }
         }
     }
 
     /* =============================
-       TEST 4: Multiple Vehicle Flow
+       TEST 23: Async Sink Flushes On Close
     ============================== */
 
-    private void testMultipleVehicles() {
+    // the writer is held on its first event while 20 are published into room for 4: every event
+    // is either written by close() or counted as dropped, and the loss is reported
+    private void testAsyncSinkFlushesOnClose() {
         try {
-            Vehicle moto = new Motorcycle("MOTO1");
-            Vehicle truck = new Truck("TRUCK1");
+            List<String> lines = new CopyOnWriteArrayList<>();
+            CountDownLatch release = new CountDownLatch(1);
+            AsyncEventSink sink = new AsyncEventSink(4, event -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                lines.add(event);
+            });
+            for (int i = 0; i < 20; i++) {
+                sink.publish("event " + i);
+            }
+            release.countDown();
+            sink.close();
+            sink.publish("after close");
 
-            ParkingTicket t1 = service.enter(moto);
-            ParkingTicket t2 = service.enter(truck);
+            long dropped = sink.getDroppedCount();
+            boolean passed =
+                    dropped > 0 &&
+                    lines.size() == 20 - dropped + 2 &&
+                    lines.get(lines.size() - 2).equals("Event sink full: " + dropped + " events dropped.") &&
+                    lines.get(lines.size() - 1).equals("after close");
 
-            Thread.sleep(1000);
+            printResult("Test Async Sink Flushes On Close", passed);
 
-            service.exit(t1,
-                    new HourlyRateStrategy(),
-                    new CashPayment());
+        } catch (Exception e) {
+            printResult("Test Async Sink Flushes On Close", false);
+        }
+    }
+}
 
-            service.exit(t2,
-                    new PremiumRateStrategy(),
-                    new CreditCardPayment());
+// replays an arrival/departure trace against a ParkingService with one thread per simulated
+// vehicle. virtual threads are used when the runtime has them (JDK 21+); older runtimes fall back
+// to a cached platform-thread pool, which is fine for a few thousand vehicles.
+class GateSimulator {
+    // one simulated vehicle: when it arrives and how long it stays, in trace milliseconds
+    static final class Arrival {
+        final long arriveAtMillis;
+        final long dwellMillis;
+        final VehicleType type;
 
-            boolean passed =
-                    t1.getStatus() == Status.PAID &&
-                    t2.getStatus() == Status.PAID;
+        Arrival(long arriveAtMillis, long dwellMillis, VehicleType type) {
+            this.arriveAtMillis = arriveAtMillis;
+            this.dwellMillis = dwellMillis;
+            this.type = type;
+        }
+    }
 
-            printResult("Test Multiple Vehicles", passed);
+    private final ParkingService service;
+    private final List<EntryGate> gates;
+    private final PricingStrategy pricingStrategy;
+    private final PaymentStrategy paymentStrategy;
+    private final int maxEntryAttempts;
 
-        } catch (Exception e) {
-            printResult("Test Multiple Vehicles", false);
+    public GateSimulator(ParkingService service, List<EntryGate> gates, PricingStrategy pricingStrategy,
+    PaymentStrategy paymentStrategy, int maxEntryAttempts) {
+        this.service = service;
+        this.gates = gates;
+        this.pricingStrategy = pricingStrategy;
+        this.paymentStrategy = paymentStrategy;
+        this.maxEntryAttempts = maxEntryAttempts;
+    }
+
+    // exponential inter-arrival gaps and dwell times, so the lot sees bursts like a real gate
+    public static List<Arrival> randomTrace(int vehicles, long meanGapMillis, long meanDwellMillis, long seed) {
+        Random random = new Random(seed);
+        VehicleType[] types = VehicleType.values();
+        List<Arrival> trace = new ArrayList<>(vehicles);
+        long clock = 0;
+        for (int i = 0; i < vehicles; i++) {
+            clock += (long) (-Math.log(1 - random.nextDouble()) * meanGapMillis);
+            long dwell = (long) (-Math.log(1 - random.nextDouble()) * meanDwellMillis);
+            trace.add(new Arrival(clock, dwell, types[random.nextInt(types.length)]));
+        }
+        return trace;
+    }
+
+    // timeScale shrinks the trace: 0.01 replays a 100 second trace in one second
+    public SimulationReport run(List<Arrival> trace, double timeScale) throws InterruptedException {
+        int n = trace.size();
+        long[] enterLatency = new long[n];
+        long[] exitLatency = new long[n];
+        LongAdder retries = new LongAdder();
+        LongAdder turnedAway = new LongAdder();
+        CountDownLatch done = new CountDownLatch(n);
+
+        long conflictsBefore = service.getParkingLot().getClaimConflicts();
+        ExecutorService executor = newPerVehicleExecutor();
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            int slot = i;
+            Arrival arrival = trace.get(i);
+            EntryGate gate = gates.get(i % gates.size());
+            executor.execute(() -> {
+                try {
+                    simulate(slot, arrival, gate, timeScale, start, enterLatency, exitLatency, retries, turnedAway);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        long claimConflicts = service.getParkingLot().getClaimConflicts() - conflictsBefore;
+        return new SimulationReport(n, elapsed, enterLatency, exitLatency, retries.sum(), claimConflicts,
+                turnedAway.sum(), isVirtual(executor));
+    }
+
+    private void simulate(int slot, Arrival arrival, EntryGate gate, double timeScale, long start,
+    long[] enterLatency, long[] exitLatency, LongAdder retries, LongAdder turnedAway) {
+        Vehicle vehicle = VehicleFactory.forType(arrival.type).createVehicle("SIM" + slot);
+        sleepUntil(start + (long) (arrival.arriveAtMillis * timeScale * 1_000_000));
+        ParkingTicket ticket = null;
+        for (int attempt = 0; attempt < maxEntryAttempts && ticket == null; attempt++) {
+            long t0 = System.nanoTime();
+            try {
+                ticket = service.enter(vehicle, gate);
+                enterLatency[slot] = System.nanoTime() - t0;
+            } catch (RuntimeException e) {
+                retries.increment();
+                sleepFor(1);
+            }
+        }
+        if (ticket == null) {
+            turnedAway.increment();
+            enterLatency[slot] = -1;
+            exitLatency[slot] = -1;
+            return;
+        }
+        sleepFor((long) (arrival.dwellMillis * timeScale));
+        long t0 = System.nanoTime();
+        service.exit(ticket, pricingStrategy, paymentStrategy);
+        exitLatency[slot] = System.nanoTime() - t0;
+    }
+
+    private static void sleepUntil(long deadlineNanos) {
+        long wait = deadlineNanos - System.nanoTime();
+        if (wait > 0) {
+            sleepFor(wait / 1_000_000);
+        }
+    }
+
+    private static void sleepFor(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ExecutorService newPerVehicleExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private static boolean isVirtual(ExecutorService executor) {
+        return !(executor instanceof ThreadPoolExecutor);
+    }
+}
+
+class SimulationReport {
+    private final int vehicles;
+    private final long elapsedNanos;
+    private final long[] enterLatency;
+    private final long[] exitLatency;
+    private final long entryRetries;
+    private final long claimConflicts;
+    private final long turnedAway;
+    private final boolean virtualThreads;
+
+    SimulationReport(int vehicles, long elapsedNanos, long[] enterLatency, long[] exitLatency,
+    long entryRetries, long claimConflicts, long turnedAway, boolean virtualThreads) {
+        this.vehicles = vehicles;
+        this.elapsedNanos = elapsedNanos;
+        this.enterLatency = served(enterLatency);
+        this.exitLatency = served(exitLatency);
+        this.entryRetries = entryRetries;
+        this.claimConflicts = claimConflicts;
+        this.turnedAway = turnedAway;
+        this.virtualThreads = virtualThreads;
+    }
+
+    // drops vehicles that never got in (-1) and sorts for percentile lookups
+    private static long[] served(long[] latencies) {
+        long[] served = Arrays.stream(latencies).filter(l -> l >= 0).toArray();
+        Arrays.sort(served);
+        return served;
+    }
+
+    public static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    public double getThroughputPerSecond() {
+        return (enterLatency.length + exitLatency.length) / (elapsedNanos / 1e9);
+    }
+    public long getEnterPercentile(double p) {
+        return percentile(enterLatency, p);
+    }
+    public long getExitPercentile(double p) {
+        return percentile(exitLatency, p);
+    }
+    public long getEntryRetries() {
+        return entryRetries;
+    }
+    // spot-allocation contention: claims that lost a CAS to another gate, not retries from a full lot
+    public long getClaimConflicts() {
+        return claimConflicts;
+    }
+    public long getTurnedAway() {
+        return turnedAway;
+    }
+    public int getServed() {
+        return enterLatency.length;
+    }
+
+    public void print() {
+        System.out.println("Simulated " + vehicles + " vehicles on " + (virtualThreads ? "virtual" : "platform")
+                + " threads in " + elapsedNanos / 1_000_000 + " ms");
+        System.out.println("  served: " + getServed() + ", turned away: " + turnedAway
+                + ", entry retries (lot full): " + entryRetries + ", claim conflicts: " + claimConflicts);
+        System.out.println("  throughput: " + Math.round(getThroughputPerSecond()) + " gate ops/s");
+        System.out.println("  enter latency us p50/p99/p999: " + getEnterPercentile(0.5) / 1000 + "/"
+                + getEnterPercentile(0.99) / 1000 + "/" + getEnterPercentile(0.999) / 1000);
+        System.out.println("  exit latency us p50/p99/p999: " + getExitPercentile(0.5) / 1000 + "/"
+                + getExitPercentile(0.99) / 1000 + "/" + getExitPercentile(0.999) / 1000);
+    }
+}
+
+// repeatable throughput numbers for the entry/exit pipeline. there is no build here to host JMH,
+// so this follows its shape by hand: warmup rounds, then measured rounds, one CSV line per result
+// with the mean and the stddev across rounds. it is one fork in one JVM, so JIT and GC luck from
+// that run is baked into every row; treat differences inside the stddev as noise.
+// run with `java Main bench` and diff the output between commits.
+class ParkingLotBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final long ROUND_NANOS = 200_000_000L;
+
+    private static volatile Object blackhole;
+
+    public void runAll() {
+        ParkingEventSink original = ParkingEvents.getSink();
+        ParkingEvents.setSink(new NoOpEventSink());
+        try {
+            System.out.println("# hand-rolled harness, not JMH: single fork, " + WARMUP_ROUNDS + " warmup and "
+                    + MEASURED_ROUNDS + " measured rounds; error is the stddev across measured rounds");
+            System.out.println("benchmark,param,score,error,unit");
+            for (int spots : new int[] { 1_000, 10_000, 100_000 }) {
+                benchmarkEnterExit(spots);
+            }
+            for (int spots : new int[] { 1_000, 100_000 }) {
+                for (double fill : new double[] { 0.0, 0.5, 0.99 }) {
+                    benchmarkFindAvailableSpot(spots, fill);
+                }
+            }
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int gates = 1; gates <= cores * 2; gates *= 2) {
+                benchmarkContendedGates(gates);
+            }
+            benchmarkPricing();
+            benchmarkEventSinks();
+            benchmarkJournalReplay();
+        } finally {
+            ParkingEvents.setSink(original);
+        }
+    }
+
+    private void benchmarkEnterExit(int spots) {
+        ParkingService service = new ParkingService(
+                ParkingLot.build().addFloor(spots, 0, 0).build(), new EntryGate(), new ExitGate());
+        Vehicle[] cars = cars("EE", 1024);
+        PricingStrategy pricing = new HourlyRateStrategy();
+        PaymentStrategy payment = amount -> { };
+        double[] score = measure(() -> {
+            long ops = 0;
+            long deadline = System.nanoTime() + ROUND_NANOS;
+            while (System.nanoTime() < deadline) {
+                ParkingTicket ticket = service.enter(cars[(int) (ops & 1023)]);
+                service.exit(ticket, pricing, payment);
+                ops++;
+            }
+            return ops;
+        });
+        report("enterExit", "spots=" + spots, score);
+    }
+
+    private void benchmarkFindAvailableSpot(int spots, double fill) {
+        ParkingLot lot = ParkingLot.build().addFloor(spots, 0, 0).build();
+        int occupied = (int) (spots * fill);
+        for (int i = 0; i < occupied; i++) {
+            lot.findAvailableSpot(VehicleType.CAR).assignVehicle(new Car("FILL" + i));
+        }
+        double[] score = measure(() -> {
+            long ops = 0;
+            long deadline = System.nanoTime() + ROUND_NANOS;
+            while (System.nanoTime() < deadline) {
+                ParkingSpot spot = lot.findAvailableSpot(VehicleType.CAR);
+                blackhole = spot;
+                lot.releaseSpot(spot);
+                ops++;
+            }
+            return ops;
+        });
+        report("findAvailableSpot", "spots=" + spots + ";fill=" + fill, score);
+    }
+
+    private void benchmarkContendedGates(int gates) {
+        int floors = Math.max(1, gates);
+        ParkingLot.Builder builder = ParkingLot.build();
+        for (int f = 0; f < floors; f++) {
+            builder.addFloor(256, 0, 0);
+        }
+        ParkingService service = new ParkingService(builder.build(), new EntryGate(), new ExitGate());
+        PricingStrategy pricing = new HourlyRateStrategy();
+        PaymentStrategy payment = amount -> { };
+        double[] score = measure(() -> {
+            AtomicLong total = new AtomicLong();
+            List<Thread> threads = new ArrayList<>();
+            long deadline = System.nanoTime() + ROUND_NANOS;
+            for (int g = 0; g < gates; g++) {
+                EntryGate gate = new EntryGate(g);
+                Vehicle[] cars = cars("G" + g + "-", 64);
+                Thread thread = new Thread(() -> {
+                    long ops = 0;
+                    while (System.nanoTime() < deadline) {
+                        ParkingTicket ticket = service.enter(cars[(int) (ops & 63)], gate);
+                        service.exit(ticket, pricing, payment);
+                        ops++;
+                    }
+                    total.addAndGet(ops);
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return total.get();
+        });
+        report("contendedGates", "gates=" + gates, score);
+    }
+
+    // assign/remove on one spot with each sink installed: how long a gate holds the spot while
+    // its events are published. the sink is put back to no-op afterwards, as runAll set it.
+    private void benchmarkEventSinks() {
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        try {
+            ParkingEvents.setSink(new ConsoleEventSink(discard));
+            report("assignRemove", "sink=console", measure(this::assignRemoveRound));
+            try (AsyncEventSink async = new AsyncEventSink(1 << 16, new ConsoleEventSink(discard))) {
+                ParkingEvents.setSink(async);
+                report("assignRemove", "sink=async", measure(this::assignRemoveRound));
+            }
+            ParkingEvents.setSink(new NoOpEventSink());
+            report("assignRemove", "sink=noOp", measure(this::assignRemoveRound));
+        } finally {
+            ParkingEvents.setSink(new NoOpEventSink());
+        }
+    }
+
+    private long assignRemoveRound() {
+        ParkingSpot spot = new ParkingSpot(VehicleType.CAR);
+        Vehicle car = new Car("BENCH1");
+        long ops = 0;
+        long deadline = System.nanoTime() + ROUND_NANOS;
+        while (System.nanoTime() < deadline) {
+            spot.assignVehicle(car);
+            spot.removeVehicle();
+            ops++;
+        }
+        return ops;
+    }
+
+    // the PremiumRateStrategy branches against the PricingTable compiled from it, over a week of hours
+    private void benchmarkPricing() {
+        PricingStrategy strategy = new PremiumRateStrategy();
+        PricingTable table = PricingTable.compile(strategy, 24 * 7);
+        Vehicle[] vehicles = { new Car("PB1"), new Motorcycle("PB2"), new Truck("PB3") };
+        report("pricing", "impl=strategy", measure(() -> pricingRound(strategy, vehicles)));
+        report("pricing", "impl=table", measure(() -> pricingRound(table, vehicles)));
+    }
+
+    private long pricingRound(PricingStrategy pricing, Vehicle[] vehicles) {
+        long ops = 0;
+        double sum = 0;
+        long deadline = System.nanoTime() + ROUND_NANOS;
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < 1024; i++, ops++) {
+                sum += pricing.calculatePrice(vehicles[(int) (ops % 3)], 1 + (int) (ops % 168));
+            }
+        }
+        blackhole = sum;
+        return ops;
+    }
+
+    // a day of traffic on 10k spots (most cars leave again), then the time to replay it into a
+    // fresh lot. the log is written once; each round replays it into a new lot.
+    private void benchmarkJournalReplay() {
+        int spots = 10_000;
+        Path file = null;
+        try {
+            file = Files.createTempFile("parking-journal-bench", ".log");
+            int events = 0;
+            try (ParkingJournal journal = new ParkingJournal(file, 64 << 20, 2)) {
+                ParkingService busy = new ParkingService(ParkingLot.build().addCompactFloor(spots, 0, 0).build(),
+                        new EntryGate(), new ExitGate(), new TicketRegistry(), ParkingClock.SYSTEM, null);
+                // journalled without waiting per event, so writing the day stays quick
+                for (int i = 0; i < 200_000; i++) {
+                    ParkingTicket ticket = busy.enter(new Car("DAY" + i));
+                    journal.appendEnter(ticket);
+                    events++;
+                    if (i % 20 != 0) {
+                        journal.appendExit(ticket);
+                        busy.exit(ticket, new HourlyRateStrategy(), amount -> { });
+                        events++;
+                    }
+                    if (busy.getTicketRegistry().size() == spots) {
+                        break;
+                    }
+                }
+            }
+            double[] millis = new double[MEASURED_ROUNDS];
+            for (int round = -WARMUP_ROUNDS; round < MEASURED_ROUNDS; round++) {
+                try (ParkingJournal journal = new ParkingJournal(file, 64 << 20, 2)) {
+                    ParkingService restarted = new ParkingService(ParkingLot.build().addCompactFloor(spots, 0, 0).build(),
+                            new EntryGate(), new ExitGate(), new TicketRegistry(), ParkingClock.SYSTEM, journal);
+                    long start = System.nanoTime();
+                    restarted.recover();
+                    if (round >= 0) {
+                        millis[round] = (System.nanoTime() - start) / 1e6;
+                    }
+                }
+            }
+            report("journalReplay", "events=" + events, millis, "ms");
+        } catch (IOException e) {
+            System.out.println("# journalReplay failed: " + e.getMessage());
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    // temp file, nothing to do
+                }
+            }
+        }
+    }
+
+    private interface Round {
+        long run();
+    }
+
+    // ops per second of each measured round
+    private double[] measure(Round round) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round.run();
+        }
+        double[] rates = new double[MEASURED_ROUNDS];
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            long start = System.nanoTime();
+            long ops = round.run();
+            rates[i] = ops / ((System.nanoTime() - start) / 1e9);
+        }
+        return rates;
+    }
+
+    private Vehicle[] cars(String prefix, int count) {
+        Vehicle[] cars = new Vehicle[count];
+        for (int i = 0; i < count; i++) {
+            cars[i] = new Car(prefix + i);
+        }
+        return cars;
+    }
+
+    private void report(String benchmark, String param, double[] opsPerSecond) {
+        report(benchmark, param, opsPerSecond, "ops/s");
+    }
+
+    // mean and sample stddev of the measured rounds
+    private void report(String benchmark, String param, double[] rounds, String unit) {
+        double mean = 0;
+        for (double value : rounds) {
+            mean += value;
         }
+        mean /= rounds.length;
+        double squares = 0;
+        for (double value : rounds) {
+            squares += (value - mean) * (value - mean);
+        }
+        double stddev = rounds.length > 1 ? Math.sqrt(squares / (rounds.length - 1)) : 0;
+        System.out.println(benchmark + "," + param + "," + Math.round(mean) + "," + Math.round(stddev) + "," + unit);
     }
 }
 
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length > 0 && args[0].equals("bench")) {
+            new ParkingLotBenchmark().runAll();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("simulate")) {
+            int vehicles = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+            runSimulation(vehicles);
+            return;
+        }
         ParkingLotTester tester = new ParkingLotTester();
         tester.runAllTests();
     }
+
+    private static void runSimulation(int vehicles) throws InterruptedException {
+        ParkingEvents.setSink(new NoOpEventSink());
+        ParkingLot.Builder builder = ParkingLot.build();
+        for (int floor = 0; floor < 4; floor++) {
+            builder.addFloor(vehicles / 8, vehicles / 16, vehicles / 32);
+        }
+        ParkingService service = new ParkingService(builder.build(), new EntryGate(), new ExitGate());
+        List<EntryGate> gates = List.of(new EntryGate(0), new EntryGate(1), new EntryGate(2), new EntryGate(3));
+        GateSimulator simulator = new GateSimulator(service, gates,
+                PricingTable.compile(new HourlyRateStrategy(), 24 * 7), new CreditCardPayment(), 50);
+        // a 30 minute trace of arrivals replayed in about 2 seconds
+        List<GateSimulator.Arrival> trace = GateSimulator.randomTrace(vehicles, 1_800_000L / vehicles, 600_000L, 42);
+        simulator.run(trace, 2_000.0 / 1_800_000).print();
+    }
 }